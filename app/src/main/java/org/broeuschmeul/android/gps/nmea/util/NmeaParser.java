@@ -21,7 +21,6 @@
 
 package org.broeuschmeul.android.gps.nmea.util;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.location.Location;
 import android.location.LocationManager;
@@ -29,20 +28,14 @@ import android.location.LocationProvider;
 import android.location.provider.ProviderProperties;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.SystemClock;
-import android.text.TextUtils;
-import android.text.TextUtils.SimpleStringSplitter;
 
 //import androidx.annotation.RequiresApi;
 
 import org.broeuschmeul.android.gps.usb.provider.USBGpsApplication;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
 
 ;
 
@@ -60,23 +53,45 @@ public class NmeaParser {
      * Tag used for log messages
      */
     private static final String LOG_TAG = NmeaParser.class.getSimpleName();
+
     private final Context appContext;
 
-    private String fixTime = null;
-    private long fixTimestamp;
+    // Decodes the sentences, the parser only turns what comes out into mock locations
+    private final NmeaDecoder decoder = new NmeaDecoder(new NmeaDecoder.Listener() {
+        @Override
+        public void onFixStatus(boolean available, int timeOfDay) {
+            int status = available ? LocationProvider.AVAILABLE : LocationProvider.TEMPORARILY_UNAVAILABLE;
+            if (mockStatus != status) {
+                notifyStatusChanged(status, null, decoder.toTimestamp(timeOfDay));
+            }
+        }
+
+        @Override
+        public void onFix(GpsFix fix) {
+            publishEpoch(fix);
+        }
+    });
+    // Location given back by the application once it is done with it, filled again for the next fix
+    private Location recycledFix = null;
+    private final AtomicReference<Location> publishedFix = new AtomicReference<>();
+    private final Location emptyFix = new Location((String) null);
+
+    // Publishes the fixes while the mock location provider is enabled
+    private volatile FixPublisher publisher = null;
+    private volatile SecurityException publishError = null;
+    private long droppedFixes = 0;
 
-    private boolean hasGGA = false;
-    private boolean hasRMC = false;
     private LocationManager lm;
     private float precision = 10f;
     private boolean mockGpsAutoEnabled = false;
-    private boolean mockGpsEnabled = false;
-    private String mockLocationProvider = null;
+    private volatile boolean mockGpsEnabled = false;
+    private volatile String mockLocationProvider = null;
 
     private int mockStatus = LocationProvider.OUT_OF_SERVICE;
 
-    private Location fix = null;
-    private String lastSentenceTime = "";
+    // When the data being parsed was received from the GPS (elapsedRealtimeNanos)
+    private long receiveTime = 0;
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
 
     public NmeaParser(Context context) {
         this(5f, context);
@@ -146,6 +161,8 @@ public class NmeaParser {
                     }
 
                     mockGpsEnabled = true;
+                    publisher = new FixPublisher();
+                    publisher.start();
 
                 } /*else {
                     log("Mock provider already enabled: " + mockLocationProvider);
@@ -220,6 +237,10 @@ public class NmeaParser {
             // logError("Error while enabling Mock Mocations Provider", e);
 
         } finally {
+            if (publisher != null) {
+                publisher.shutdown();
+                publisher = null;
+            }
             mockLocationProvider = null;
             mockGpsEnabled = false;
             mockGpsAutoEnabled = false;
@@ -253,42 +274,122 @@ public class NmeaParser {
      * @throws SecurityException
      */
     private void notifyFix(Location fix) throws SecurityException {
-        fixTime = null;
-        hasGGA = false;
-        hasRMC = false;
-
         if (fix != null) {
-            ((USBGpsApplication) appContext).notifyNewLocation(fix);
             //log("New Fix: " + System.currentTimeMillis() + " " + fix);
 
-            if (lm != null && mockGpsEnabled) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                fix.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+            }
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                    fix.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+            FixPublisher publisher = this.publisher;
+            if (publisher != null) {
+                // The location must not be changed anymore once it is handed over
+                Location staleFix = publisher.offer(fix, receiveTime);
+                if (staleFix != null) {
+                    // Never published, it can be filled again right away
+                    droppedFixes++;
+                    recycledFix = staleFix;
                 }
+            } else {
+                publishFix(fix, receiveTime);
+            }
+        }
+    }
 
-                try {
-                    lm.setTestProviderLocation(mockLocationProvider, fix);
-
-                } catch (IllegalArgumentException e) {
-                    /*log("Tried to notify a fix that was incomplete");
-                    log("Accuracy = " + Float.toString(fix.getAccuracy()));*/
+    /**
+     * Publishes a fix to the mock location provider and to the application.
+     * Called by the publisher thread, or by the parsing thread when the mock location provider is disabled.
+     */
+    private void publishFix(Location fix, long receiveTime) throws SecurityException {
+        if (lm != null && mockGpsEnabled) {
 
+            try {
+                lm.setTestProviderLocation(mockLocationProvider, fix);
+                if (receiveTime != 0) {
+                    publishLatency.record(SystemClock.elapsedRealtimeNanos() - receiveTime);
                 }
-                //log("New Fix notified to Location Manager: " + mockLocationProvider);
 
-            }/* else {
-                log("Fix could not be notified, no locationManager");
+            } catch (IllegalArgumentException e) {
+                /*log("Tried to notify a fix that was incomplete");
+                log("Accuracy = " + Float.toString(fix.getAccuracy()));*/
 
-            }*/
-            this.fix = null;
+            }
+            //log("New Fix notified to Location Manager: " + mockLocationProvider);
+
+        }/* else {
+            log("Fix could not be notified, no locationManager");
+
+        }*/
+
+        // The application gives back a location it is done with, for the parsing thread to fill again
+        Location freeFix = ((USBGpsApplication) appContext).notifyNewLocation(fix);
+        if (freeFix != null) {
+            publishedFix.set(freeFix);
+        }
+    }
+
+    /**
+     * Publishes the fixes on its own thread, so the thread reading the GPS never waits for the system.
+     * Only the latest fix is kept: a fix that is still waiting when a newer one comes is dropped, not queued.
+     */
+    private class FixPublisher extends Thread {
+        private Location pendingFix = null;
+        private long pendingReceiveTime;
+        private volatile boolean running = true;
+
+        private FixPublisher() {
+            super("FixPublisher");
+        }
+
+        /**
+         * Hands a fix over to the publisher thread.
+         *
+         * @return the fix that was still waiting to be published, or null
+         */
+        private synchronized Location offer(Location fix, long receiveTime) {
+            Location staleFix = pendingFix;
+            pendingFix = fix;
+            pendingReceiveTime = receiveTime;
+            notify();
+            return staleFix;
+        }
+
+        private void shutdown() {
+            running = false;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            try {
+                while (running) {
+                    Location fix;
+                    long receiveTime;
+                    synchronized (this) {
+                        while (pendingFix == null) {
+                            wait();
+                        }
+                        fix = pendingFix;
+                        receiveTime = pendingReceiveTime;
+                        pendingFix = null;
+                    }
+
+                    try {
+                        publishFix(fix, receiveTime);
+                    } catch (SecurityException e) {
+                        // Reported to the parsing thread, mock locations are not allowed anymore
+                        publishError = e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Mock location provider disabled
+            }
         }
     }
 
     private void notifyStatusChanged(int status, Bundle extras, long updateTime) {
-        fixTime = null;
-        hasGGA = false;
-        hasRMC = false;
+        decoder.clearEpoch();
         if (this.mockStatus != status) {
             //log("New mockStatus: " + System.currentTimeMillis() + " " + status);
 
@@ -301,665 +402,228 @@ public class NmeaParser {
                         mockLocationProvider
                 );*/
             }
-            this.fix = null;
             this.mockStatus = status;
         }
     }
 
-    // parse NMEA Sentence
-    public String parseNmeaSentence(String gpsSentence) throws SecurityException {
-        String nmeaSentence = null;
-
-        //log("data: " + System.currentTimeMillis() + " " + gpsSentence);
-
-        // Check that status is in a readable format
-        Pattern xx = Pattern.compile("\\$([^*$]*)(?:\\*([0-9A-F][0-9A-F]))?\r\n");
-
-        Matcher m = xx.matcher(gpsSentence);
-
-        if (m.matches()) {
-            nmeaSentence = m.group(0);
-            String sentence = m.group(1);
-            String checkSum = m.group(2);
-            /*log("data: " +
-                    System.currentTimeMillis() +
-                    " " +
-                    sentence +
-                    " checksum: " +
-                    checkSum +
-                    " control: " +
-                    String.format("%02X", computeChecksum(sentence))
-            );*/
-
-            // If we don't have a valid checksum then we obviously don't have the correct sentence
-            if (checkSum != null &&
-                    checkSum.equals(String.format("%02X", computeChecksum(sentence)))) {
-
-                SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(',');
-                splitter.setString(sentence);
-                String command = splitter.next();
-
-                if (command.length() == 5) {
-                    // If the command length is not 5, safe to assume we got
-                    // bad data
-                    command = command.substring(2);
-
-                    switch (command) {
-                        /*
-                        case "GGA": {
-                        *//* $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
-
-                            Where:
-                                 GGA          Global Positioning System Fix Data
-                                 123519       Fix taken at 12:35:19 UTC
-                                 4807.038,N   Latitude 48 deg 07.038' N
-                                 01131.000,E  Longitude 11 deg 31.000' E
-                                 1            Fix quality: 0 = invalid
-                                                           1 = GPS fix (SPS)
-                                                           2 = DGPS fix
-                                                           3 = PPS fix
-                                                           4 = Real Time Kinematic
-                                                           5 = Float RTK
-                                                           6 = estimated (dead reckoning) (2.3 feature)
-                                                           7 = Manual input mode
-                                                           8 = Simulation mode
-                                 08           Number of satellites being tracked
-                                 0.9          Horizontal dilution of position
-                                 545.4,M      Altitude, Meters, above mean sea level
-                                 46.9,M       Height of geoid (mean sea level) above WGS84
-                                                  ellipsoid
-                                 (empty field) time in seconds since last DGPS update
-                                 (empty field) DGPS station ID number
-                                 *47          the checksum data, always begins with *
-                         *//*
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                        *//* fix quality:
-                            0= invalid
-                            1 = GPS fix (SPS)
-                            2 = DGPS fix
-                            3 = PPS fix
-                            4 = Real Time Kinematic
-                            5 = Float RTK
-                            6 = estimated (dead reckoning) (2.3 feature)
-                            7 = Manual input mode
-                            8 = Simulation mode
-                         *//*
-                            String quality = splitter.next();
-
-                            // Number of satellites being tracked
-                            String nbSat = splitter.next();
-
-                            // Horizontal dilution of position (float)
-                            String hdop = splitter.next();
-
-                            // Altitude, Meters, above mean sea level
-                            String alt = splitter.next();
-
-                            // Height of geoid (mean sea level) above WGS84 ellipsoid
-                            String geoAlt = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // time in seconds since last DGPS update
-                            // DGPS station ID number
-                            if (quality != null && !quality.equals("") && !quality.equals("0")) {
-                                if (this.mockStatus != LocationProvider.AVAILABLE) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
-                                }
-
-                                if (!time.equals(fixTime)) {
-                                    notifyFix(fix);
-                                    fix = new Location(mockLocationProvider);
-                                    fixTime = time;
-                                    fixTimestamp = parseNmeaTime(time);
-                                    fix.setTime(fixTimestamp);
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putLong(SYSTEM_TIME_FIX, System.currentTimeMillis());
-                                    fix.setExtras(bundle);
-
-                                    //Log.v(LOG_TAG, "Fix: "+fix);
-                                }
-
-                                if (lat != null && !lat.equals("")) {
-                                    fix.setLatitude(parseNmeaLatitude(lat, latDir));
-                                }
-
-                                if (lon != null && !lon.equals("")) {
-                                    fix.setLongitude(parseNmeaLongitude(lon, lonDir));
-                                }
-
-                                if (hdop != null && !hdop.equals("")) {
-                                    fix.setAccuracy(Float.parseFloat(hdop) * precision);
-                                }
-
-                                if (alt != null && !alt.equals("")) {
-                                    fix.setAltitude(Double.parseDouble(alt));
-                                }
-
-                                if (nbSat != null && !nbSat.equals("")) {
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putInt(SATELLITE_KEY, Integer.parseInt(nbSat));
-                                    fix.setExtras(bundle);
-                                }
-
-                                //Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
-                                hasGGA = true;
-
-                                if (hasRMC) {
-                                    notifyFix(fix);
-                                }
-
-                            } else if (quality != null && quality.equals("0")) {
-                                if (this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
-                                }
-                            }
-
-                            break;
-                        }
-                        */
-
-                        case "GNS": {
-                        /*
-                        $GNGNS,111719.00,5553.30594,N,03726.19884,E,AAAA,20,0.69,185.3,13.4,,,V*19
-                        $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
-
-                            Where:
-                                 GGA          Global Positioning System Fix Data
-                                 123519       Fix taken at 12:35:19 UTC
-                                 4807.038,N   Latitude 48 deg 07.038' N
-                                 01131.000,E  Longitude 11 deg 31.000' E
-                                 1            Fix quality: 0 = invalid
-                                                           1 = GPS fix (SPS)
-                                                           2 = DGPS fix
-                                                           3 = PPS fix
-                                                           4 = Real Time Kinematic
-                                                           5 = Float RTK
-                                                           6 = estimated (dead reckoning) (2.3 feature)
-                                                           7 = Manual input mode
-                                                           8 = Simulation mode
-                                 08           Number of satellites being tracked
-                                 0.9          Horizontal dilution of position
-                                 545.4,M      Altitude, Meters, above mean sea level
-                                 46.9,M       Height of geoid (mean sea level) above WGS84
-                                                  ellipsoid
-                                 (empty field) time in seconds since last DGPS update
-                                 (empty field) DGPS station ID number
-                                 *47          the checksum data, always begins with *
-                         */
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                        /* fix quality:
-                            0= invalid
-                            1 = GPS fix (SPS)
-                            2 = DGPS fix
-                            3 = PPS fix
-                            4 = Real Time Kinematic
-                            5 = Float RTK
-                            6 = estimated (dead reckoning) (2.3 feature)
-                            7 = Manual input mode
-                            8 = Simulation mode
-                         */
-                            String quality = splitter.next();
-
-                            // Number of satellites being tracked
-                            String nbSat = splitter.next();
-
-                            // Horizontal dilution of position (float)
-                            String hdop = splitter.next();
-
-                            // Altitude, Meters, above mean sea level
-                            String alt = splitter.next();
-
-                            // Height of geoid (mean sea level) above WGS84 ellipsoid
-                            String geoAlt = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // time in seconds since last DGPS update
-                            // DGPS station ID number
-                            if (quality != null && !quality.equals("") && !quality.contains("N")) {
-                                if (this.mockStatus != LocationProvider.AVAILABLE) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
-                                }
-
-                                if (!time.equals(fixTime)) {
-                                    notifyFix(fix);
-                                    fix = new Location(mockLocationProvider);
-                                    fixTime = time;
-                                    fixTimestamp = parseNmeaTime(time);
-                                    fix.setTime(fixTimestamp);
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putLong(SYSTEM_TIME_FIX, System.currentTimeMillis());
-                                    fix.setExtras(bundle);
-
-                                    //Log.v(LOG_TAG, "Fix: "+fix);
-                                }
-
-                                if (lat != null && !lat.equals("")) {
-                                    fix.setLatitude(parseNmeaLatitude(lat, latDir));
-                                }
-
-                                if (lon != null && !lon.equals("")) {
-                                    fix.setLongitude(parseNmeaLongitude(lon, lonDir));
-                                }
-
-                                if (hdop != null && !hdop.equals("")) {
-                                    fix.setAccuracy(Float.parseFloat(hdop) * precision);
-                                }
-
-                                if (alt != null && !alt.equals("")) {
-                                    fix.setAltitude(Double.parseDouble(alt));
-                                }
-
-                                if (nbSat != null && !nbSat.equals("")) {
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putInt(SATELLITE_KEY, Integer.parseInt(nbSat));
-                                    fix.setExtras(bundle);
-                                }
-
-                                //Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
-                                hasGGA = true;
-
-                                if (hasRMC) {
-                                    notifyFix(fix);
-                                }
-
-                            } else if (quality != null && quality.contains("N")) {
-                                if (this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
-                                }
-                            }
-
-                            break;
-                        }
-
-                        case "RMC": {
-                        /* $GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A
-
-                           Where:
-                             RMC          Recommended Minimum sentence C
-                             123519       Fix taken at 12:35:19 UTC
-                             A            Status A=active or V=Void.
-                             4807.038,N   Latitude 48 deg 07.038' N
-                             01131.000,E  Longitude 11 deg 31.000' E
-                             022.4        Speed over the ground in knots
-                             084.4        Track angle in degrees True
-                             230394       Date - 23rd of March 1994
-                             003.1,W      Magnetic Variation
-                             *6A          The checksum data, always begins with *
-                        */
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // fix status (A/V)
-                            String status = splitter.next();
-
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                            // Speed over the ground in knots
-                            String speed = splitter.next();
-
-                            // Track angle in degrees True
-                            String bearing = splitter.next();
-
-                            // UTC date of fix DDMMYY
-                            String date = splitter.next();
-
-                            // Magnetic Variation ddd.D
-                            String magn = splitter.next();
-
-                            // Magnetic variation direction (E/W)
-                            String magnDir = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // for NMEA 0183 version 3.00 active the Mode indicator field is added
-                            // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator )
-                            if (status != null && !status.equals("") && status.equals("A")) {
-                                if (this.mockStatus != LocationProvider.AVAILABLE &&
-                                        time != null && !time.equals("")) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
-                                }
-
-                                if (time != null && !time.equals("") && !time.equals(fixTime)) {
-                                    notifyFix(fix);
-                                    fix = new Location(mockLocationProvider);
-                                    fixTime = time;
-                                    fixTimestamp = parseNmeaTime(time);
-                                    fix.setTime(fixTimestamp);
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putLong(SYSTEM_TIME_FIX, System.currentTimeMillis());
-                                    fix.setExtras(bundle);
-
-                                    //Log.v(LOG_TAG, "Fix: "+fix);
-                                }
-
-                                if (lat != null && !lat.equals("")) {
-                                    fix.setLatitude(parseNmeaLatitude(lat, latDir));
-                                }
-
-                                if (lon != null && !lon.equals("")) {
-                                    fix.setLongitude(parseNmeaLongitude(lon, lonDir));
-                                }
-
-                                if (speed != null && !speed.equals("")) {
-                                    fix.setSpeed(parseNmeaSpeed(speed, "N"));
-                                }
-
-                                if (bearing != null && !bearing.equals("")) {
-                                    fix.setBearing(Float.parseFloat(bearing));
-                                }
-                                //	Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
-                                hasRMC = true;
-                                if (hasGGA) {
-                                    notifyFix(fix);
-                                }
-                            } else if (status != null && status.equals("V") &&
-                                    this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE &&
-                                    time != null && !time.equals("")) {
-                                long updateTime = parseNmeaTime(time);
-                                notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
-                            }
-
-                            break;
-                        }
-                        case "GSA": {
-                        /*  $GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39
-
-                            Where:
-                                 GSA      Satellite status
-                                 A        Auto selection of 2D or 3D fix (M = manual)
-                                 3        3D fix - values include: 1 = no fix
-                                                                   2 = 2D fix
-                                                                   3 = 3D fix
-                                 04,05... PRNs of satellites used for fix (space for 12)
-                                 2.5      PDOP (Position dilution of precision)
-                                 1.3      Horizontal dilution of precision (HDOP)
-                                 2.1      Vertical dilution of precision (VDOP)
-                                 *39      the checksum data, always begins with *
-                         */
-                            // mode : A Auto selection of 2D or 3D fix / M = manual
-                            String mode = splitter.next();
-
-                            // fix type  : 1 - no fix / 2 - 2D / 3 - 3D
-                            String fixType = splitter.next();
-
-                            // discard PRNs of satellites used for fix (space for 12)
-                            for (int i = 0; ((i < 12) && (!"1".equals(fixType))); i++) {
-                                splitter.next();
-                            }
-
-                            // Position dilution of precision (float)
-                            String pdop = splitter.next();
-
-                            // Horizontal dilution of precision (float)
-                            String hdop = splitter.next();
-
-                            // Vertical dilution of precision (float)
-                            String vdop = splitter.next();
-
-                            break;
-                        }
-                        case "VTG": {
-                    /*  $GPVTG,054.7,T,034.4,M,005.5,N,010.2,K*48
+    /**
+     * Parses a NMEA sentence given as a slice of a byte buffer, as produced by {@link NmeaFramer}.
+     * <p>
+     * The frame is validated first, so corrupted data is rejected before any field is read.
+     *
+     * @param buffer buffer holding the sentence ($....*XY\r\n)
+     * @param offset offset of the '$'
+     * @param length length of the sentence, including the line terminator
+     * @return true if the sentence is a valid NMEA sentence, false otherwise
+     */
+    public boolean parseNmeaSentence(byte[] buffer, int offset, int length) throws SecurityException {
+        SecurityException error = publishError;
+        if (error != null) {
+            publishError = null;
+            throw error;
+        }
 
-                        where:
-                                VTG          Track made good and ground speed
-                                054.7,T      True track made good (degrees)
-                                034.4,M      Magnetic track made good
-                                005.5,N      Ground speed, knots
-                                010.2,K      Ground speed, Kilometers per hour
-                                *48          Checksum
-                     */
-                            // Track angle in degrees True
-                            String bearing = splitter.next();
+        return decoder.decode(buffer, offset, length);
+    }
 
-                            // T
-                            splitter.next();
+    /**
+     * Parses a UBX frame, as found by {@link NmeaFramer} in the same stream as the sentences.
+     * Only NAV-PVT gives a fix, see {@link NmeaDecoder#decodeUbx(byte[], int, int)}.
+     *
+     * @return true if the frame is a valid UBX frame
+     */
+    public boolean parseUbxFrame(byte[] buffer, int offset, int length) throws SecurityException {
+        SecurityException error = publishError;
+        if (error != null) {
+            publishError = null;
+            throw error;
+        }
 
-                            // Magnetic track made good
-                            String magn = splitter.next();
+        return decoder.decodeUbx(buffer, offset, length);
+    }
 
-                            // M
-                            splitter.next();
+    /**
+     * Sets when the data about to be parsed was received from the GPS,
+     * so the latency until the fix is published can be measured.
+     *
+     * @param elapsedRealtimeNanos receive time, from {@link SystemClock#elapsedRealtimeNanos()}
+     */
+    public void setReceiveTime(long elapsedRealtimeNanos) {
+        this.receiveTime = elapsedRealtimeNanos;
+    }
 
-                            // Speed over the ground in knots
-                            String speedKnots = splitter.next();
+    /**
+     * @return the latencies from the reception of the data to the publication of the mock location
+     */
+    public LatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
 
-                            // N
-                            splitter.next();
+    /**
+     * @return the number of fixes dropped because a newer one came before they could be published
+     */
+    public long getDroppedFixCount() {
+        return droppedFixes;
+    }
 
-                            // Speed over the ground in Kilometers per hour
-                            String speedKm = splitter.next();
+    /**
+     * @return the validator used to check sentences, which holds the accepted / rejected counters
+     */
+    public NmeaValidator getValidator() {
+        return decoder.getValidator();
+    }
 
-                            // K
-                            splitter.next();
-                            // for NMEA 0183 version 3.00 active the Mode indicator field is added
-                            // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator)
+    /**
+     * @return the number of UBX frames rejected because of their checksum
+     */
+    public long getInvalidUbxFrameCount() {
+        return decoder.getInvalidUbxFrameCount();
+    }
 
-                            break;
-                        }
-                        case "GLL": {
-                    /*  $GPGLL,4916.45,N,12311.12,W,225444,A,*1D
-
-                        Where:
-                             GLL          Geographic position, Latitude and Longitude
-                             4916.46,N    Latitude 49 deg. 16.45 min. North
-                             12311.12,W   Longitude 123 deg. 11.12 min. West
-                             225444       Fix taken at 22:54:44 UTC
-                             A            Data Active or V (void)
-                             *iD          checksum data
-                     */
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // fix status (A/V)
-                            String status = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // for NMEA 0183 version 3.00 active the Mode indicator field is added
-                            // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator )
-                            break;
-                        }
-                    }
+    /**
+     * Publishes the epoch being received if it is overdue.
+     * Must be called from the thread parsing the sentences, at least as often as it asks for.
+     *
+     * @return the time in milliseconds until the next call is needed, or -1 if no epoch is pending
+     */
+    public long checkPendingFix() {
+        return decoder.checkPendingEpoch();
+    }
 
-                    return nmeaSentence;
-                }
-            } /*else {
-                log("Sentence invalid, checksums don't match");
-            }*/
-        } /*else {
-            log("Sentence invalid");
-        }*/
-        // As we have received some awful data, it is safe to assume we have missed the
-        // current fix, so reset all of the current values and restart
-        hasGGA = false;
-        hasRMC = false;
-        fixTime = null;
-        return null;
+    /**
+     * @param listener receives the satellites in view at the end of each epoch, on the parsing thread
+     */
+    public void setSatelliteListener(SatelliteModel.SnapshotListener listener) {
+        decoder.setSatelliteListener(listener);
     }
 
-    public double parseNmeaLatitude(String lat, String orientation) {
-        double latitude = 0.0;
-
-        if (lat != null && orientation != null && !lat.equals("") && !orientation.equals("")) {
-            double temp1 = Double.parseDouble(lat);
-            double temp2 = Math.floor(temp1 / 100);
-            double temp3 = (temp1 / 100 - temp2) / 0.6;
-            if (orientation.equals("S")) {
-                latitude = -(temp2 + temp3);
-            } else if (orientation.equals("N")) {
-                latitude = (temp2 + temp3);
-            }
-        }
-        return latitude;
+    /**
+     * @param mergeWindow time in milliseconds without any sentence after which an incomplete epoch is published
+     */
+    public void setMergeWindow(long mergeWindow) {
+        decoder.setMergeWindow(mergeWindow);
     }
 
-    public double parseNmeaLongitude(String lon, String orientation) {
-        double longitude = 0.0;
-        if (lon != null && orientation != null && !lon.equals("") && !orientation.equals("")) {
-            double temp1 = Double.parseDouble(lon);
-            double temp2 = Math.floor(temp1 / 100);
-            double temp3 = (temp1 / 100 - temp2) / 0.6;
-            if (orientation.equals("W")) {
-                longitude = -(temp2 + temp3);
-            } else if (orientation.equals("E")) {
-                longitude = (temp2 + temp3);
-            }
-        }
-        return longitude;
+    /**
+     * @param deadline time in milliseconds after the first sentence of an epoch after which it is published
+     *                 even if it is incomplete
+     */
+    public void setEpochDeadline(long deadline) {
+        decoder.setEpochDeadline(deadline);
     }
 
-    public float parseNmeaSpeed(String speed, String metric) {
-        float meterSpeed = 0.0f;
-        if (speed != null && metric != null && !speed.equals("") && !metric.equals("")) {
-            float temp1 = Float.parseFloat(speed) / 3.6f;
-            if (metric.equals("K")) {
-                meterSpeed = temp1;
-            } else if (metric.equals("N")) {
-                meterSpeed = temp1 * 1.852f;
-            }
+    /**
+     * Turns an epoch into a Location and publishes it, called once per epoch by the decoder.
+     */
+    private void publishEpoch(GpsFix epoch) {
+        Location fix = recycledFix;
+        recycledFix = null;
+        if (fix == null) {
+            fix = publishedFix.getAndSet(null);
+        }
+        if (fix == null) {
+            fix = new Location(mockLocationProvider);
+        } else if (hasStaleAccuracy(fix, epoch)) {
+            // Before Android 13 the accuracies can't be removed one by one, start from an empty location.
+            // It drops the extras, which then cost new bundles, but only when the receiver stops giving one
+            fix.set(emptyFix);
+            fix.setProvider(mockLocationProvider);
+        } else {
+            fix.setProvider(mockLocationProvider);
         }
-        return meterSpeed;
-    }
 
-    public long parseNmeaTime(String time) {
-        long timestamp = 0;
-        @SuppressLint("SimpleDateFormat")
-        SimpleDateFormat fmt = new SimpleDateFormat("HHmmss.SSS");
-        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        // Every field is set or removed, nothing is left from the fix the location was used for before
+        fix.setTime(epoch.timestamp);
+        fix.setLatitude(epoch.latitude);
+        fix.setLongitude(epoch.longitude);
 
-        try {
-            if (time != null) {
-                long now = System.currentTimeMillis();
-                long today = now - (now % 86400000L);
-                long temp1;
-
-                // sometime we don't have millisecond in the time string, so we have to reformat it
-                temp1 = fmt.parse(String.format((Locale) null, "%010.3f", Double.parseDouble(time))).getTime();
-                long temp2 = today + temp1;
-                // if we're around midnight we could have a problem...
-                if (temp2 - now > 43200000L) {
-                    timestamp = temp2 - 86400000L;
-                } else if (now - temp2 > 43200000L) {
-                    timestamp = temp2 + 86400000L;
-                } else {
-                    timestamp = temp2;
-                }
+        if (!Double.isNaN(epoch.altitude)) {
+            fix.setAltitude(epoch.altitude);
+        } else {
+            fix.removeAltitude();
+        }
+        // The accuracy estimated by the receiver, if it gives one, is better than the DOP times a constant
+        if (!Float.isNaN(epoch.horizontalAccuracy)) {
+            fix.setAccuracy(epoch.horizontalAccuracy);
+        } else if (!Float.isNaN(epoch.hdop)) {
+            fix.setAccuracy(epoch.hdop * precision);
+        } else {
+            fix.removeAccuracy();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (!Float.isNaN(epoch.verticalAccuracy)) {
+                fix.setVerticalAccuracyMeters(epoch.verticalAccuracy);
+            } else if (!Float.isNaN(epoch.vdop)) {
+                fix.setVerticalAccuracyMeters(epoch.vdop * precision);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                fix.removeVerticalAccuracy();
             }
-        } catch (ParseException e) {
-            //logError("Error while parsing NMEA time", e);
+            if (!Float.isNaN(epoch.speedAccuracy) && !Float.isNaN(epoch.speed)) {
+                fix.setSpeedAccuracyMetersPerSecond(epoch.speedAccuracy);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                fix.removeSpeedAccuracy();
+            }
+            if (!Float.isNaN(epoch.bearingAccuracy) && !Float.isNaN(epoch.bearing)) {
+                fix.setBearingAccuracyDegrees(epoch.bearingAccuracy);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                fix.removeBearingAccuracy();
+            }
+        }
+        if (!Float.isNaN(epoch.speed)) {
+            fix.setSpeed(epoch.speed);
+        } else {
+            fix.removeSpeed();
+        }
+        if (!Float.isNaN(epoch.bearing)) {
+            fix.setBearing(epoch.bearing);
+        } else {
+            fix.removeBearing();
+        }
+
+        // setExtras() copies the bundle, but getExtras() gives the one of the location, filled in place
+        Bundle extras = fix.getExtras();
+        if (extras == null) {
+            fix.setExtras(new Bundle());
+            extras = fix.getExtras();
+        }
+        extras.putLong(SYSTEM_TIME_FIX, epoch.systemTime);
+        if (epoch.satellites >= 0) {
+            extras.putInt(SATELLITE_KEY, epoch.satellites);
+        } else {
+            extras.remove(SATELLITE_KEY);
         }
-        //log("Timestamp from gps = " + String.valueOf(timestamp) + " System clock says " + System.currentTimeMillis());
-        return timestamp;
+
+        notifyFix(fix);
     }
 
-    public byte computeChecksum(String s) {
-        byte checksum = 0;
-        for (char c : s.toCharArray()) {
-            checksum ^= (byte) c;
+    /**
+     * @return true if the location has an accuracy the epoch doesn't give, which can't be removed on
+     * Android 8 to 12
+     */
+    private static boolean hasStaleAccuracy(Location fix, GpsFix epoch) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return false;
         }
-        return checksum;
+        return (fix.hasVerticalAccuracy() && Float.isNaN(epoch.verticalAccuracy) && Float.isNaN(epoch.vdop))
+                || (fix.hasSpeedAccuracy() && (Float.isNaN(epoch.speedAccuracy) || Float.isNaN(epoch.speed)))
+                || (fix.hasBearingAccuracy() && (Float.isNaN(epoch.bearingAccuracy) || Float.isNaN(epoch.bearing)));
     }
 
-    public String getLastSentenceTime() {
-        return lastSentenceTime;
+    private long toTimestamp(int millisOfDay) {
+        return decoder.toTimestamp(millisOfDay);
+    }
+
+    /**
+     * @return the UTC timestamp of the last sentence holding a time, or 0 if there was none since
+     * {@link #clearLastSentenceTime()}
+     */
+    public long getLastSentenceTime() {
+        int lastSentenceTime = decoder.getLastSentenceTime();
+        return lastSentenceTime >= 0 ? toTimestamp(lastSentenceTime) : 0;
     }
 
     public void clearLastSentenceTime() {
-        lastSentenceTime = "";
+        decoder.clearLastSentenceTime();
     }
 /*
     private void log(String message) {
@@ -5,10 +5,17 @@ import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Handler;
 import android.preference.PreferenceManager;
+import android.view.Choreographer;
 
 import androidx.appcompat.app.AppCompatDelegate;
 
-import java.util.ArrayList;
+import org.broeuschmeul.android.gps.usb.provider.driver.SharedNmeaOutput;
+import org.broeuschmeul.android.gps.usb.provider.util.SentenceRing;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by freshollie on 15/05/17.
@@ -17,11 +24,50 @@ import java.util.ArrayList;
 public class USBGpsApplication extends Application {
     private static boolean locationAsked = true;
 
-    private final ArrayList<ServiceDataListener> serviceDataListeners = new ArrayList<>();
-    private int LOG_SIZE = 100;
+    private final CopyOnWriteArrayList<ServiceDataListener> serviceDataListeners = new CopyOnWriteArrayList<>();
+    private static final int LOG_SIZE = 100;
+    // Fixes are triple buffered: the service fills one, the latest one waits in latestLocation
+    // and the main thread reads lastLocation, so a location is never written while it is being read
     private Location lastLocation;
-    private ArrayList<String> logLines = new ArrayList<>();
+    private final AtomicReference<Location> latestLocation = new AtomicReference<>();
+    private final AtomicReference<Location> freeLocation = new AtomicReference<>();
+    private final SentenceRing logLines = new SentenceRing(LOG_SIZE);
     private Handler mainHandler;
+    // Shared with other applications for the life of the process, created on first use
+    private SharedNmeaOutput sharedNmeaOutput;
+    private boolean sharedNmeaOutputCreated = false;
+
+    // What is waiting to be delivered to the listeners on the main thread
+    private final AtomicInteger pendingSentences = new AtomicInteger();
+    private final AtomicBoolean pendingLocation = new AtomicBoolean(false);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    private final Choreographer.FrameCallback drain = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Cleared first, so anything coming in from now on schedules another drain
+            drainScheduled.set(false);
+
+            int sentences = pendingSentences.getAndSet(0);
+            Location location = pendingLocation.getAndSet(false) ? getLastLocation() : null;
+
+            for (ServiceDataListener dataListener : serviceDataListeners) {
+                if (sentences > 0) {
+                    dataListener.onNewSentences(sentences);
+                }
+                if (location != null) {
+                    dataListener.onLocationNotified(location);
+                }
+            }
+        }
+    };
+
+    private final Runnable frameRequester = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(drain);
+        }
+    };
 
     public static void setLocationAsked() {
         locationAsked = true;
@@ -47,17 +93,45 @@ public class USBGpsApplication extends Application {
         setupDaynightMode();
         locationAsked = false;
         mainHandler = new Handler(getMainLooper());
-        for (int i = 0; i < LOG_SIZE; i++) {
-            logLines.add("");
-        }
         super.onCreate();
     }
 
-    public String[] getLogLines() {
-        return logLines.toArray(new String[logLines.size()]);
+    /**
+     * Must be called from the main thread.
+     *
+     * @return the output shared by the provider with the applications bound to the SharedNmeaService,
+     * or null if shared memory is not available
+     */
+    public SharedNmeaOutput getSharedNmeaOutput() {
+        if (!sharedNmeaOutputCreated) {
+            sharedNmeaOutputCreated = true;
+            sharedNmeaOutput = SharedNmeaOutput.create(getMainLooper());
+        }
+        return sharedNmeaOutput;
+    }
+
+    /**
+     * @return the last received sentences, which can be read incrementally
+     */
+    public SentenceRing getLogRing() {
+        return logLines;
     }
 
+    /**
+     * Must be called from the main thread. The location is only valid until the next fix is taken
+     * on the main thread, it must be copied to be kept.
+     *
+     * @return the last location notified by the service
+     */
     public Location getLastLocation() {
+        Location latest = latestLocation.getAndSet(null);
+        if (latest != null) {
+            if (lastLocation != null) {
+                // Not read anymore, the service can fill it again
+                freeLocation.set(lastLocation);
+            }
+            lastLocation = latest;
+        }
         return lastLocation;
     }
 
@@ -70,42 +144,47 @@ public class USBGpsApplication extends Application {
     }
 
     public void notifyNewSentence(final String sentence) {
-        if (logLines.size() > LOG_SIZE) {
-            logLines.remove(0);
-        }
-
         logLines.add(sentence);
 
-        synchronized (serviceDataListeners) {
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    for (ServiceDataListener dataListener : serviceDataListeners) {
-                        dataListener.onNewSentence(sentence);
-                    }
-                }
-            });
-
+        if (!serviceDataListeners.isEmpty()) {
+            pendingSentences.incrementAndGet();
+            scheduleDrain();
         }
     }
 
-    public void notifyNewLocation(final Location location) {
-        lastLocation = location;
-        synchronized (serviceDataListeners) {
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    for (ServiceDataListener dataListener : serviceDataListeners) {
-                        dataListener.onLocationNotified(location);
-                    }
-                }
-            });
+    /**
+     * Hands a new fix over to the main thread. The location must not be changed afterwards.
+     *
+     * @return a location the caller can fill for its next fix, or null if it has to create one
+     */
+    public Location notifyNewLocation(final Location location) {
+        // The previous fix if the main thread didn't take it
+        Location unread = latestLocation.getAndSet(location);
+
+        if (!serviceDataListeners.isEmpty()) {
+            pendingLocation.set(true);
+            scheduleDrain();
+        }
+        return unread != null ? unread : freeLocation.getAndSet(null);
+    }
 
+    /**
+     * Schedules the delivery of what is pending to the listeners on the next frame,
+     * unless it is already scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            mainHandler.post(frameRequester);
         }
     }
 
     public interface ServiceDataListener {
-        void onNewSentence(String sentence);
+        /**
+         * Called at most once per frame, on the main thread.
+         *
+         * @param count number of sentences received since the last call, they can be read from {@link #getLogRing()}
+         */
+        void onNewSentences(int count);
 
         void onLocationNotified(Location location);
     }
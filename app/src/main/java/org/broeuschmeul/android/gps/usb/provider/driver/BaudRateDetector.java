@@ -0,0 +1,157 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.os.SystemClock;
+
+import org.broeuschmeul.android.gps.nmea.transport.GpsTransport;
+import org.broeuschmeul.android.gps.nmea.transport.TransferBuffer;
+import org.broeuschmeul.android.gps.nmea.util.NmeaStreamScorer;
+import org.broeuschmeul.android.gps.usb.provider.driver.serial.SerialDriver;
+
+/**
+ * Finds the baud rate of the GPS by setting each candidate speed in turn and scoring what is received
+ * with a {@link NmeaStreamScorer}.
+ * <p>
+ * A speed is accepted as soon as two valid NMEA sentences or UBX frames are seen, and rejected as soon as
+ * enough bytes came without any valid frame. A speed where nothing at all is received is sampled up to
+ * {@link #MAX_SAMPLE_TIME}, long enough to catch the burst of a GPS sending once per second.
+ */
+public class BaudRateDetector {
+    /**
+     * Speeds tried after the preferred ones, most common GPS speeds first.
+     */
+    public static final int[] COMMON_BAUD_RATES = {
+            9600, 115200, 38400, 4800, 57600, 230400, 460800, 921600, 19200, 2400, 1200
+    };
+
+    /**
+     * Sampling time of a speed at which data was received, at least.
+     */
+    private static final int MIN_SAMPLE_TIME = 300;
+    /**
+     * Sampling time of a speed at which nothing was received.
+     */
+    private static final int MAX_SAMPLE_TIME = 1500;
+    /**
+     * Number of valid frames needed to accept a speed.
+     */
+    private static final int CONFIDENT_FRAMES = 2;
+    /**
+     * Number of bytes without a valid frame to reject a speed.
+     */
+    private static final int REJECT_BYTES = 1024;
+    /**
+     * How often cancel() is checked while waiting for data, in ms.
+     */
+    private static final int POLL_TIME = 100;
+
+    private final SerialDriver driver;
+    private final GpsTransport transport;
+    private final NmeaStreamScorer scorer = new NmeaStreamScorer();
+    private volatile boolean cancelled = false;
+
+    public BaudRateDetector(SerialDriver driver, GpsTransport transport) {
+        this.driver = driver;
+        this.transport = transport;
+    }
+
+    /**
+     * Tries the given speeds first, then the {@link #COMMON_BAUD_RATES}, each speed being tried once.
+     *
+     * @param preferredSpeeds speeds to try first (i.e. the last one that worked), ignored if not positive
+     * @return the speed of the GPS, or -1 if it couldn't be found
+     */
+    public int detect(int... preferredSpeeds) throws InterruptedException {
+        int[] tried = new int[preferredSpeeds.length + COMMON_BAUD_RATES.length];
+        int triedCount = 0;
+
+        for (int i = 0; i < tried.length && !cancelled; i++) {
+            int speed = i < preferredSpeeds.length
+                    ? preferredSpeeds[i] : COMMON_BAUD_RATES[i - preferredSpeeds.length];
+
+            if (speed <= 0 || contains(tried, triedCount, speed)) {
+                continue;
+            }
+            tried[triedCount++] = speed;
+
+            if (probe(speed)) {
+                return speed;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the given speed and samples the received data.
+     *
+     * @return true if valid GPS data was received at that speed
+     */
+    public boolean probe(int speed) throws InterruptedException {
+        if (!driver.setBaudRate(speed)) {
+            return false;
+        }
+        scorer.reset();
+
+        // Data already in the transport was sent at the previous speed
+        drain();
+
+        long start = SystemClock.elapsedRealtime();
+        long minEnd = start + getSampleTime(speed);
+        long maxEnd = start + MAX_SAMPLE_TIME;
+
+        while (!cancelled) {
+            long now = SystemClock.elapsedRealtime();
+            if (now >= maxEnd) {
+                break;
+            }
+
+            TransferBuffer buffer = transport.take(Math.min(POLL_TIME, maxEnd - now));
+            if (buffer != null) {
+                scorer.feed(buffer.data, 0, driver.filterReceivedData(buffer.data, buffer.length));
+                transport.recycle(buffer);
+            }
+
+            if (scorer.getValidFrames() >= CONFIDENT_FRAMES) {
+                return true;
+            }
+            if (scorer.getValidFrames() == 0 && scorer.getByteCount() >= REJECT_BYTES
+                    && SystemClock.elapsedRealtime() >= minEnd) {
+                return false;
+            }
+        }
+
+        // A single valid frame is enough if it is not drowned in invalid ones
+        return scorer.getValidFrames() > 0 && scorer.getValidFrames() >= scorer.getInvalidFrames();
+    }
+
+    /**
+     * Stops a running detection.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the minimum sampling time of a speed: the time needed to receive a few sentences, in ms
+     */
+    public static int getSampleTime(int speed) {
+        // 10 bits per byte, with the start and stop bits
+        long time = REJECT_BYTES * 10L * 1000L / speed;
+        return (int) Math.max(MIN_SAMPLE_TIME, Math.min(MAX_SAMPLE_TIME, time));
+    }
+
+    private void drain() throws InterruptedException {
+        TransferBuffer buffer;
+        while ((buffer = transport.take(0)) != null) {
+            transport.recycle(buffer);
+        }
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,107 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+
+/**
+ * Remembers how to talk to each GPS that was successfully connected: which interface and endpoints
+ * carry the data, which serial driver it needs and at which speed it sends.
+ * <p>
+ * Profiles are kept in the shared preferences, keyed by vendor id, product id and serial number,
+ * so a known device can be connected again without any discovery, probing or waiting.
+ */
+public class DeviceProfileCache {
+    private static final String PREF_PREFIX = "deviceProfile_";
+
+    /**
+     * The connection settings of a device.
+     */
+    public static class Profile {
+        public final int interfaceIndex;
+        public final int inEndpointAddress;
+        public final int outEndpointAddress;
+        public final int baudRate;
+        public final String driver;
+
+        public Profile(int interfaceIndex, int inEndpointAddress, int outEndpointAddress, int baudRate, String driver) {
+            this.interfaceIndex = interfaceIndex;
+            this.inEndpointAddress = inEndpointAddress;
+            this.outEndpointAddress = outEndpointAddress;
+            this.baudRate = baudRate;
+            this.driver = driver;
+        }
+
+        private String encode() {
+            return interfaceIndex + "," + inEndpointAddress + "," + outEndpointAddress + "," + baudRate + "," + driver;
+        }
+
+        private static Profile decode(String value) {
+            String[] values = value.split(",");
+            if (values.length != 5) {
+                return null;
+            }
+            try {
+                return new Profile(
+                        Integer.parseInt(values[0]),
+                        Integer.parseInt(values[1]),
+                        Integer.parseInt(values[2]),
+                        Integer.parseInt(values[3]),
+                        values[4]
+                );
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Profile && encode().equals(((Profile) o).encode());
+        }
+
+        @Override
+        public int hashCode() {
+            return encode().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+
+    private final SharedPreferences sharedPreferences;
+
+    public DeviceProfileCache(SharedPreferences sharedPreferences) {
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    /**
+     * @return the profile of the device, or null if the device is not known
+     */
+    public Profile get(UsbDevice device) {
+        String value = sharedPreferences.getString(getKey(device), null);
+        return value != null ? Profile.decode(value) : null;
+    }
+
+    public void put(UsbDevice device, Profile profile) {
+        sharedPreferences.edit()
+                .putString(getKey(device), profile.encode())
+                .apply();
+    }
+
+    public void remove(UsbDevice device) {
+        sharedPreferences.edit()
+                .remove(getKey(device))
+                .apply();
+    }
+
+    private static String getKey(UsbDevice device) {
+        String serial = null;
+        try {
+            serial = device.getSerialNumber();
+        } catch (SecurityException e) {
+            // No permission for the device yet
+        }
+        return PREF_PREFIX + device.getVendorId() + "_" + device.getProductId() + "_" + (serial != null ? serial : "");
+    }
+}
@@ -0,0 +1,183 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers NMEA sentences to the {@link USBGpsManager.NmeaListener}s.
+ * <p>
+ * Sentences are queued for each listener with {@link #offer(long, String)}, and {@link #flush(Executor)}
+ * schedules at most one task per listener to deliver everything that was queued, typically once per USB read.
+ * Each listener has a bounded queue: when a listener is too slow, the oldest sentences are dropped and
+ * counted instead of letting the queue grow.
+ * <p>
+ * The listeners are kept in a copy-on-write list, so sentences are queued without taking any lock on it.
+ */
+public class NmeaListenerDispatcher {
+    /**
+     * Number of sentences queued for a listener before the oldest ones are dropped.
+     */
+    public static final int QUEUE_CAPACITY = 256;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * The queue of a listener, which is also the task delivering it.
+     */
+    private static class Subscription implements Runnable {
+        private final USBGpsManager.NmeaListener listener;
+        private final long[] timestamps = new long[QUEUE_CAPACITY];
+        private final String[] sentences = new String[QUEUE_CAPACITY];
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private int head = 0;
+        private int count = 0;
+        private long dropCount = 0;
+        private volatile boolean removed = false;
+
+        private Subscription(USBGpsManager.NmeaListener listener) {
+            this.listener = listener;
+        }
+
+        private synchronized void offer(long timestamp, String sentence) {
+            if (count == QUEUE_CAPACITY) {
+                // The listener is falling behind, drop the oldest sentence
+                sentences[head] = null;
+                head = (head + 1) % QUEUE_CAPACITY;
+                count--;
+                dropCount++;
+            }
+            int tail = (head + count) % QUEUE_CAPACITY;
+            timestamps[tail] = timestamp;
+            sentences[tail] = sentence;
+            count++;
+        }
+
+        private synchronized boolean hasPending() {
+            return count > 0;
+        }
+
+        private synchronized int getQueueDepth() {
+            return count;
+        }
+
+        private synchronized long getDropCount() {
+            return dropCount;
+        }
+
+        @Override
+        public void run() {
+            do {
+                while (!removed) {
+                    long timestamp;
+                    String sentence;
+                    synchronized (this) {
+                        if (count == 0) {
+                            break;
+                        }
+                        timestamp = timestamps[head];
+                        sentence = sentences[head];
+                        sentences[head] = null;
+                        head = (head + 1) % QUEUE_CAPACITY;
+                        count--;
+                    }
+                    listener.onNmeaReceived(timestamp, sentence);
+                }
+                scheduled.set(false);
+                // Sentences queued after the loop ended but before the flag was cleared
+            } while (!removed && hasPending() && scheduled.compareAndSet(false, true));
+        }
+    }
+
+    /**
+     * @return true if the listener was added, false if it was already there
+     */
+    public synchronized boolean add(USBGpsManager.NmeaListener listener) {
+        if (find(listener) != null) {
+            return false;
+        }
+        subscriptions.add(new Subscription(listener));
+        return true;
+    }
+
+    public synchronized void remove(USBGpsManager.NmeaListener listener) {
+        Subscription subscription = find(listener);
+        if (subscription != null) {
+            subscription.removed = true;
+            subscriptions.remove(subscription);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Subscription subscription : subscriptions) {
+            subscription.removed = true;
+        }
+        subscriptions.clear();
+    }
+
+    public boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    /**
+     * Queues a sentence for all the listeners.
+     */
+    public void offer(long timestamp, String sentence) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(timestamp, sentence);
+        }
+    }
+
+    /**
+     * Schedules the delivery of the queued sentences, with a single task per listener.
+     */
+    public void flush(Executor executor) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.hasPending() && subscription.scheduled.compareAndSet(false, true)) {
+                executor.execute(subscription);
+            }
+        }
+    }
+
+    /**
+     * @return the number of sentences waiting to be delivered to the listener, or 0 if it is not registered
+     */
+    public int getQueueDepth(USBGpsManager.NmeaListener listener) {
+        Subscription subscription = find(listener);
+        return subscription != null ? subscription.getQueueDepth() : 0;
+    }
+
+    /**
+     * @return the number of sentences dropped because the listener was too slow, or 0 if it is not registered
+     */
+    public long getDropCount(USBGpsManager.NmeaListener listener) {
+        Subscription subscription = find(listener);
+        return subscription != null ? subscription.getDropCount() : 0;
+    }
+
+    /**
+     * @return queue depth and drop count of each listener, for logs
+     */
+    @Override
+    public String toString() {
+        StringBuilder stats = new StringBuilder();
+        for (Subscription subscription : subscriptions) {
+            if (stats.length() > 0) {
+                stats.append(", ");
+            }
+            stats.append(subscription.listener.getClass().getSimpleName())
+                    .append(": queued=").append(subscription.getQueueDepth())
+                    .append(" dropped=").append(subscription.getDropCount());
+        }
+        return stats.toString();
+    }
+
+    private Subscription find(USBGpsManager.NmeaListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+}
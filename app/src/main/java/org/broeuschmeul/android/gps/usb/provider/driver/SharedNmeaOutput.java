@@ -0,0 +1,277 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.nmea.util.SatelliteModel;
+import org.broeuschmeul.android.gps.nmea.util.SatelliteSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares the NMEA stream and the satellites in view with other applications, so they don't have to open the GPS
+ * themselves.
+ * <p>
+ * Clients bind to {@link SharedNmeaService} and send {@link #MSG_REGISTER} with a replyTo messenger.
+ * They get back {@link #MSG_SHARED_MEMORY}, with a shared memory region they can only map read-only in its data,
+ * then {@link #MSG_EPOCH} at the end of each epoch, with the UTC time of day in arg1 and the satellite count in arg2.
+ * <p>
+ * The region is laid out as follows, big endian:
+ * <pre>
+ * header
+ *    0  int   MAGIC
+ *    4  int   VERSION
+ *    8  int   offset of the NMEA ring
+ *   12  int   size of the NMEA ring
+ *   16  int   offset of the satellites
+ *   20  int   size of the satellites
+ *   24  long  number of bytes ever written to the NMEA ring
+ *   32  long  satellites sequence, odd while they are written
+ * NMEA ring
+ *       the sentences, "$...*XY\r\n", the byte written n-th is at n modulo the ring size
+ * satellites
+ *    0  int   UTC time of day of the epoch in milliseconds, or -1
+ *    4  int   number of satellites
+ *    8        8 bytes per satellite: constellation (byte), used in fix (byte), PRN (short),
+ *             elevation (byte), SNR (byte, -1 if not tracked), azimuth (short)
+ * </pre>
+ * A client reads the ring from where it stopped up to the written count, and has lost data if it is more than
+ * the ring size behind; the sentences being checksummed, a torn one can be told from a good one.
+ * The satellites were read consistently if the sequence was even and didn't change while they were read.
+ * <p>
+ * The two counters are 8-byte aligned and written with release semantics, after the bytes they cover (and the odd
+ * sequence before the satellites). A client in another process must order its reads the same way, or on ARM it can
+ * see a new counter before the bytes:
+ * <ul>
+ * <li>read the written count or the sequence with acquire semantics, i.e. {@code getAcquire} of a
+ * {@code MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN)}, or a plain read followed by
+ * {@code VarHandle.acquireFence()}, or {@code __atomic_load_n(p, __ATOMIC_ACQUIRE)} in native code</li>
+ * <li>then read the sentences or the satellites</li>
+ * <li>for the satellites, call {@code VarHandle.acquireFence()} (or {@code __atomic_thread_fence(__ATOMIC_ACQUIRE)})
+ * before reading the sequence again</li>
+ * </ul>
+ * <p>
+ * Shared memory needs Android 8.1 (API 27).
+ */
+public class SharedNmeaOutput implements SatelliteModel.SnapshotListener {
+    /**
+     * Client to service: register the replyTo messenger.
+     */
+    public static final int MSG_REGISTER = 1;
+    /**
+     * Client to service: unregister the replyTo messenger.
+     */
+    public static final int MSG_UNREGISTER = 2;
+    /**
+     * Service to client: the shared memory region, in the data under {@link #KEY_SHARED_MEMORY}.
+     */
+    public static final int MSG_SHARED_MEMORY = 3;
+    /**
+     * Service to client: an epoch ended, its satellites are in the shared memory.
+     */
+    public static final int MSG_EPOCH = 4;
+
+    public static final String KEY_SHARED_MEMORY = "sharedMemory";
+
+    public static final int MAGIC = 0x4E4D4541; // "NMEA"
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int NMEA_RING_SIZE = 64 * 1024;
+    public static final int SATELLITE_SIZE = 8;
+    public static final int SATELLITES_SIZE = 8 + SatelliteModel.CONSTELLATIONS * SatelliteModel.MAX_SATELLITES * SATELLITE_SIZE;
+
+    public static final int NMEA_WRITTEN_OFFSET = 24;
+    public static final int SATELLITE_SEQUENCE_OFFSET = 32;
+
+    private static final String LOG_TAG = SharedNmeaOutput.class.getSimpleName();
+    private static final int NMEA_RING_OFFSET = HEADER_SIZE;
+    private static final int SATELLITES_OFFSET = NMEA_RING_OFFSET + NMEA_RING_SIZE;
+    // Atomic release stores of the counters, from Android 13
+    private static final VarHandle LONGS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+            ? MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN) : null;
+
+    private final SharedMemory sharedMemory;
+    // Only used by the thread reading the GPS
+    private final ByteBuffer memory;
+    private long nmeaWritten = 0;
+    private long satelliteSequence = 0;
+    // Before Android 13, a volatile read and write is the fence (dmb ish on ARM)
+    private final AtomicInteger fence = new AtomicInteger();
+
+    private final CopyOnWriteArrayList<Messenger> clients = new CopyOnWriteArrayList<>();
+    private final Messenger messenger;
+
+    private SharedNmeaOutput(SharedMemory sharedMemory, ByteBuffer memory, Looper looper) {
+        this.sharedMemory = sharedMemory;
+        this.memory = memory;
+        this.messenger = new Messenger(new Handler(looper, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_REGISTER:
+                        register(msg.replyTo);
+                        return true;
+                    case MSG_UNREGISTER:
+                        clients.remove(msg.replyTo);
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        }));
+
+        memory.putInt(0, MAGIC);
+        memory.putInt(4, VERSION);
+        memory.putInt(8, NMEA_RING_OFFSET);
+        memory.putInt(12, NMEA_RING_SIZE);
+        memory.putInt(16, SATELLITES_OFFSET);
+        memory.putInt(20, SATELLITES_SIZE);
+        memory.putLong(NMEA_WRITTEN_OFFSET, 0);
+        memory.putLong(SATELLITE_SEQUENCE_OFFSET, 0);
+        memory.putInt(SATELLITES_OFFSET, -1);
+        memory.putInt(SATELLITES_OFFSET + 4, 0);
+    }
+
+    /**
+     * @param looper looper handling the messages of the clients
+     * @return the output, or null if shared memory is not available
+     */
+    public static SharedNmeaOutput create(Looper looper) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return null;
+        }
+        try {
+            SharedMemory sharedMemory = SharedMemory.create(
+                    "UsbGps NMEA", HEADER_SIZE + NMEA_RING_SIZE + SATELLITES_SIZE);
+            ByteBuffer memory = sharedMemory.mapReadWrite();
+            // Only our own mapping can write, the clients can only map it read-only
+            sharedMemory.setProtect(OsConstants.PROT_READ);
+            return new SharedNmeaOutput(sharedMemory, memory, looper);
+        } catch (ErrnoException e) {
+            Log.e(LOG_TAG, "Unable to create the shared memory", e);
+            return null;
+        }
+    }
+
+    public IBinder getBinder() {
+        return messenger.getBinder();
+    }
+
+    public boolean hasClients() {
+        return !clients.isEmpty();
+    }
+
+    private void register(Messenger client) {
+        if (client == null || clients.contains(client)) {
+            return;
+        }
+        Bundle data = new Bundle();
+        data.putParcelable(KEY_SHARED_MEMORY, sharedMemory);
+        Message reply = Message.obtain(null, MSG_SHARED_MEMORY);
+        reply.setData(data);
+        try {
+            client.send(reply);
+            clients.add(client);
+        } catch (RemoteException e) {
+            // Client already gone
+        }
+    }
+
+    /**
+     * Appends a sentence to the NMEA ring. Must be called from the thread reading the GPS.
+     *
+     * @param length length of the sentence, including the line terminator
+     */
+    public void writeSentence(byte[] buffer, int offset, int length) {
+        if (length > NMEA_RING_SIZE) {
+            return;
+        }
+        int position = (int) (nmeaWritten % NMEA_RING_SIZE);
+        int first = Math.min(length, NMEA_RING_SIZE - position);
+
+        memory.position(NMEA_RING_OFFSET + position);
+        memory.put(buffer, offset, first);
+        if (first < length) {
+            memory.position(NMEA_RING_OFFSET);
+            memory.put(buffer, offset + first, length - first);
+        }
+        nmeaWritten += length;
+        // Published once the bytes are there
+        putLongRelease(NMEA_WRITTEN_OFFSET, nmeaWritten);
+    }
+
+    /**
+     * Writes the satellites of the epoch that just ended and tells the clients.
+     * Called on the thread reading the GPS.
+     */
+    @Override
+    public void onSatellites(SatelliteSnapshot snapshot) {
+        putLongRelease(SATELLITE_SEQUENCE_OFFSET, ++satelliteSequence);
+        // The odd sequence is seen before any of the satellites
+        storeFence();
+
+        int count = Math.min(snapshot.count, SatelliteModel.CONSTELLATIONS * SatelliteModel.MAX_SATELLITES);
+        memory.putInt(SATELLITES_OFFSET, snapshot.timeOfDay);
+        memory.putInt(SATELLITES_OFFSET + 4, count);
+        int position = SATELLITES_OFFSET + 8;
+        for (int i = 0; i < count; i++) {
+            memory.put(position, snapshot.constellations[i]);
+            memory.put(position + 1, (byte) (snapshot.usedInFix[i] ? 1 : 0));
+            memory.putShort(position + 2, (short) snapshot.prns[i]);
+            memory.put(position + 4, (byte) snapshot.elevations[i]);
+            memory.put(position + 5, (byte) snapshot.snrs[i]);
+            memory.putShort(position + 6, (short) snapshot.azimuths[i]);
+            position += SATELLITE_SIZE;
+        }
+
+        putLongRelease(SATELLITE_SEQUENCE_OFFSET, ++satelliteSequence);
+
+        for (Messenger client : clients) {
+            try {
+                // One way call, doesn't wait for the client
+                client.send(Message.obtain(null, MSG_EPOCH, snapshot.timeOfDay, count));
+            } catch (RemoteException e) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    /**
+     * Writes a counter after everything written before it, as seen from any process.
+     */
+    private void putLongRelease(int offset, long value) {
+        if (LONGS != null) {
+            LONGS.setRelease(memory, offset, value);
+        } else {
+            storeFence();
+            memory.putLong(offset, value);
+        }
+    }
+
+    /**
+     * Keeps the stores before it from being reordered after the stores after it, by the compiler or the CPU.
+     */
+    private void storeFence() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            VarHandle.releaseFence();
+        } else {
+            fence.incrementAndGet();
+        }
+    }
+}
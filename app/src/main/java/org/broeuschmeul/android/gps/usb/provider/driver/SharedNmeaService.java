@@ -0,0 +1,28 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+import org.broeuschmeul.android.gps.usb.provider.USBGpsApplication;
+
+/**
+ * The endpoint other applications bind to, with the READ_GPS_DATA permission, to read the NMEA stream and the
+ * satellites, see {@link SharedNmeaOutput} for the protocol.
+ * <p>
+ * It can only be bound: starting it does nothing, so the permission doesn't give any control over the provider,
+ * which is not exported.
+ */
+public class SharedNmeaService extends Service {
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        stopSelf(startId);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        SharedNmeaOutput output = ((USBGpsApplication) getApplication()).getSharedNmeaOutput();
+        return output != null ? output.getBinder() : null;
+    }
+}
@@ -53,31 +53,41 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
+import org.broeuschmeul.android.gps.nmea.transport.GpsTransport;
+import org.broeuschmeul.android.gps.nmea.transport.RawCapture;
+import org.broeuschmeul.android.gps.nmea.transport.RawCaptureWriter;
+import org.broeuschmeul.android.gps.nmea.transport.ReplayTransport;
+import org.broeuschmeul.android.gps.nmea.transport.TransferBuffer;
+import org.broeuschmeul.android.gps.nmea.util.NmeaFramer;
 import org.broeuschmeul.android.gps.nmea.util.NmeaParser;
+import org.broeuschmeul.android.gps.nmea.util.NmeaValidator;
+import org.broeuschmeul.android.gps.nmea.util.SatelliteModel;
+import org.broeuschmeul.android.gps.nmea.util.Ubx;
 import org.broeuschmeul.android.gps.usb.provider.R;
 import org.broeuschmeul.android.gps.usb.provider.USBGpsApplication;
+import org.broeuschmeul.android.gps.usb.provider.driver.serial.SerialDriver;
+import org.broeuschmeul.android.gps.usb.provider.driver.serial.SerialDrivers;
 import org.broeuschmeul.android.gps.usb.provider.ui.GpsInfoActivity;
 import org.broeuschmeul.android.gps.usb.provider.util.SuperuserManager;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -96,15 +106,22 @@ public class USBGpsManager {
     private static final String ACTION_USB_PERMISSION =
             "org.broeuschmeul.android.gps.usb.provider.driver.USBGpsManager.USB_PERMISSION";
     private static final String NOTIFICATION_CHANNEL_ID = "gps_service_notification";
+    /**
+     * Size of a raw capture file, about 15 minutes of a GPS sending 10 kB/s, and number of files kept.
+     */
+    private static final int RAW_CAPTURE_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int RAW_CAPTURE_SEGMENTS = 16;
     // Has more connections logs
     private final boolean
             debug = false;
     private final boolean shouldSetTime;
+    private final boolean captureRawData;
     private final Service callingService;
     private final NmeaParser parser;
-    private final List<NmeaListener> nmeaListeners =
-            Collections.synchronizedList(new LinkedList<NmeaListener>());
+    private final NmeaListenerDispatcher nmeaListeners = new NmeaListenerDispatcher();
+    private volatile SharedNmeaOutput sharedOutput = null;
     private final SharedPreferences sharedPreferences;
+    private final DeviceProfileCache profileCache;
     private final NotificationCompat.Builder connectionProblemNotificationBuilder;
     private final NotificationCompat.Builder serviceStoppedNotificationBuilder;
     private final Context appContext;
@@ -138,8 +155,11 @@ public class USBGpsManager {
     private boolean setDeviceSpeed = false;
     private String deviceSpeed = "auto";
     private String defaultDeviceSpeed = "460800";
+    private int transferMultiplier = 1;
     private int gpsProductId = 424;
     private int gpsVendorId = 5446;
+    private File replayCapture = null;
+    private float replaySpeed = ReplayTransport.REAL_TIME;
 
     /**
      * @param callingService
@@ -160,6 +180,7 @@ public class USBGpsManager {
         LocationManager locationManager = (LocationManager) callingService.getSystemService(Context.LOCATION_SERVICE);
 
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(callingService);
+        profileCache = new DeviceProfileCache(sharedPreferences);
 
         enableNotifications = sharedPreferences.getBoolean(appContext.getString(R.string.pref_notifications_key), false);
 
@@ -168,7 +189,17 @@ public class USBGpsManager {
                 callingService.getString(R.string.defaultGpsDeviceSpeed)
         );
 
+        try {
+            transferMultiplier = Integer.parseInt(sharedPreferences.getString(
+                    USBGpsProviderService.PREF_USB_TRANSFER_MULTIPLIER,
+                    callingService.getString(R.string.defaultUsbTransferMultiplier)
+            ));
+        } catch (NumberFormatException e) {
+            transferMultiplier = 1;
+        }
+
         shouldSetTime = sharedPreferences.getBoolean(USBGpsProviderService.PREF_SET_TIME, false);
+        captureRawData = sharedPreferences.getBoolean(USBGpsProviderService.PREF_RAW_CAPTURE, false);
         timeSetAlready = true;
 
         defaultDeviceSpeed = callingService.getString(R.string.defaultGpsDeviceSpeed);
@@ -260,7 +291,11 @@ public class USBGpsManager {
         if (!Objects.equals(getDeviceFromAttached(), device)) {
             return;
         }
-        SystemClock.sleep(5000);
+        if (profileCache.get(device) == null) {
+            // Leaves some time to a device we don't know to start up,
+            // a known one is connected straight away
+            SystemClock.sleep(5000);
+        }
         // After 10 seconds we can assume the GPS must have the
         // correct time and so we are ready to assume the GPS can
         // set the correct time
@@ -402,13 +437,19 @@ public class USBGpsManager {
                 debugLog("starting connection and reading thread");
                 connectionAndReadingPool = Executors.newSingleThreadScheduledExecutor();
 
-                debugLog("starting connection to socket task");
-                connectionAndReadingPool.scheduleWithFixedDelay(
-                        connectThread,
-                        1000,
-                        3000,
-                        TimeUnit.MILLISECONDS
-                );
+                if (replayCapture != null) {
+                    debugLog("starting replay of " + replayCapture);
+                    connectionAndReadingPool.execute(new ReplayGps(replayCapture, replaySpeed));
+
+                } else {
+                    debugLog("starting connection to socket task");
+                    connectionAndReadingPool.scheduleWithFixedDelay(
+                            connectThread,
+                            1000,
+                            3000,
+                            TimeUnit.MILLISECONDS
+                    );
+                }
             }
 
         }
@@ -697,9 +738,8 @@ public class USBGpsManager {
      * @param listener a {@link NmeaListener} object to register
      */
     public void addNmeaListener(NmeaListener listener) {
-        if (!nmeaListeners.contains(listener)) {
+        if (nmeaListeners.add(listener)) {
             debugLog("adding new NMEA listener");
-            nmeaListeners.add(listener);
         }
     }
 
@@ -714,13 +754,46 @@ public class USBGpsManager {
         nmeaListeners.remove(listener);
     }
 
+    /**
+     * Sets where the NMEA sentences and the satellites are shared with other applications.
+     *
+     * @param output the output, or null to stop sharing
+     */
+    public void setSharedOutput(SharedNmeaOutput output) {
+        sharedOutput = output;
+        setSatelliteListener(output);
+    }
+
+    /**
+     * Makes the next {@link #enable()} replay a raw capture instead of connecting to the USB GPS.
+     * The provider is disabled at the end of the capture.
+     *
+     * @param capture the capture, see {@link RawCapture}, or null to use the USB GPS
+     * @param speed   how many times faster than real time, or {@link ReplayTransport#AS_FAST_AS_POSSIBLE}
+     */
+    public void setReplay(File capture, float speed) {
+        replayCapture = capture;
+        replaySpeed = speed;
+    }
+
+    /**
+     * Sets the satellite listener.
+     * In fact, it delegates to the NMEA parser.
+     *
+     * @param listener receives the satellites in view once per epoch, on the reading thread, or null
+     */
+    public void setSatelliteListener(SatelliteModel.SnapshotListener listener) {
+        if (parser != null) {
+            parser.setSatelliteListener(listener);
+        }
+    }
+
     /**
      * Sets the system time to the given UTC time value
      *
-     * @param time UTC value HHmmss.SSS
+     * @param parseTime UTC timestamp in milliseconds
      */
-    private void setSystemTime(String time) {
-        long parseTime = parser.parseNmeaTime(time);
+    private void setSystemTime(long parseTime) {
 
         Log.v(LOG_TAG, "What?: " + parseTime);
 
@@ -750,23 +823,26 @@ public class USBGpsManager {
     /**
      * Notifies the reception of a NMEA sentence from the USB GPS to registered NMEA listeners.
      *
-     * @param nmeaSentence the complete NMEA sentence received from the USB GPS (i.e. $....*XY where XY is the checksum)
-     * @return true if the input string is a valid NMEA sentence, false otherwise.
+     * @param buffer buffer holding the complete NMEA sentence received from the USB GPS (i.e. $....*XY\r\n where XY is the checksum)
+     * @param offset offset of the sentence in the buffer
+     * @param length length of the sentence, including the line terminator
+     * @return true if the input is a valid NMEA sentence, false otherwise.
      */
-    private boolean notifyNmeaSentence(final String nmeaSentence) {
+    private boolean notifyNmeaSentence(byte[] buffer, int offset, int length) {
         boolean res = false;
         if (enabled) {
-            log("parsing and notifying NMEA sentence: " + nmeaSentence);
-            String sentence = null;
+            if (debug)
+                log("parsing and notifying NMEA sentence: " + new String(buffer, offset, length, StandardCharsets.US_ASCII));
+            boolean recognized = false;
             try {
                 if (shouldSetTime && !timeSetAlready) {
                     parser.clearLastSentenceTime();
                 }
 
-                sentence = parser.parseNmeaSentence(nmeaSentence);
+                recognized = parser.parseNmeaSentence(buffer, offset, length);
 
                 if (shouldSetTime && !timeSetAlready) {
-                    if (!parser.getLastSentenceTime().isEmpty()) {
+                    if (parser.getLastSentenceTime() != 0) {
                         setSystemTime(parser.getLastSentenceTime());
                         timeSetAlready = true;
                     }
@@ -774,38 +850,85 @@ public class USBGpsManager {
 
             } catch (SecurityException e) {
                 if (debug)
-                    Log.e(LOG_TAG, "error while parsing NMEA sentence: " + nmeaSentence, e);
+                    Log.e(LOG_TAG, "error while parsing NMEA sentence: " + new String(buffer, offset, length, StandardCharsets.US_ASCII), e);
                 // a priori Mock Location is disabled
-                sentence = null;
+                recognized = false;
                 disable(R.string.msg_mock_location_disabled);
             } catch (Exception e) {
                 if (debug) {
                     Log.e(LOG_TAG, "Sentence not parsable");
-                    Log.e(LOG_TAG, nmeaSentence);
+                    Log.e(LOG_TAG, new String(buffer, offset, length, StandardCharsets.US_ASCII));
                 }
                 e.printStackTrace();
             }
-            final String recognizedSentence = sentence;
-            final long timestamp = System.currentTimeMillis();
-            if (recognizedSentence != null) {
+            if (recognized) {
                 res = true;
-                log("notifying NMEA sentence: " + recognizedSentence);
+                // Strings are only needed by the log view and the listeners, so only build them then
                 if (enableNotifications) {
+                    // without the line terminator
                     ((USBGpsApplication) appContext).notifyNewSentence(
-                            recognizedSentence.replaceAll("(\\r|\\n)", "")
+                            new String(buffer, offset, length - 2, StandardCharsets.US_ASCII)
                     );
                 }
-                synchronized (nmeaListeners) {
-                    for (final NmeaListener listener : nmeaListeners) {
-                        notificationPool.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                listener.onNmeaReceived(timestamp, recognizedSentence);
-                            }
-                        });
+                SharedNmeaOutput output = sharedOutput;
+                if (output != null) {
+                    // Straight from the USB buffer, no String needed
+                    output.writeSentence(buffer, offset, length);
+                }
+                if (!nmeaListeners.isEmpty()) {
+                    // Delivered by flushNmeaListeners(), once the whole USB read is parsed
+                    nmeaListeners.offer(
+                            System.currentTimeMillis(),
+                            new String(buffer, offset, length, StandardCharsets.US_ASCII)
+                    );
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Parses a UBX frame received from the USB GPS. Only the fix is used, the frames are not given to the
+     * NMEA listeners.
+     *
+     * @param buffer buffer holding the complete UBX frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame, including the checksum
+     * @return true if the input is a valid UBX frame, false otherwise.
+     */
+    private boolean notifyUbxFrame(byte[] buffer, int offset, int length) {
+        boolean res = false;
+        if (enabled) {
+            try {
+                if (shouldSetTime && !timeSetAlready) {
+                    parser.clearLastSentenceTime();
+                }
+
+                res = parser.parseUbxFrame(buffer, offset, length);
+
+                if (shouldSetTime && !timeSetAlready) {
+                    if (parser.getLastSentenceTime() != 0) {
+                        setSystemTime(parser.getLastSentenceTime());
+                        timeSetAlready = true;
                     }
                 }
+
+            } catch (SecurityException e) {
+                if (debug)
+                    Log.e(LOG_TAG, "error while parsing UBX frame", e);
+                // a priori Mock Location is disabled
+                res = false;
+                disable(R.string.msg_mock_location_disabled);
+            } catch (Exception e) {
+                if (debug) {
+                    Log.e(LOG_TAG, "UBX frame not parsable");
+                    Log.e(LOG_TAG, "class " + Ubx.getMessageClass(buffer, offset) + " id " + Ubx.getMessageId(buffer, offset)
+                            + ", " + length + " bytes");
+                }
+                e.printStackTrace();
             }
+            if (debug && !res)
+                log("invalid UBX frame of " + length + " bytes");
         }
         return res;
     }
@@ -819,6 +942,20 @@ public class USBGpsManager {
         if (debug) Log.d(LOG_TAG, message);
     }
 
+    /**
+     * Delivers the sentences queued for the NMEA listeners.
+     */
+    private void flushNmeaListeners() {
+        ExecutorService pool = notificationPool;
+        if (enabled && pool != null && !nmeaListeners.isEmpty()) {
+            try {
+                nmeaListeners.flush(pool);
+            } catch (RejectedExecutionException e) {
+                // The manager is being disabled
+            }
+        }
+    }
+
     /**
      * Used to listen for nmea updates from UsbGpsManager
      */
@@ -826,6 +963,106 @@ public class USBGpsManager {
         void onNmeaReceived(long timestamp, String nmea);
     }
 
+    /**
+     * Replays a raw capture through the same framing, parsing and publishing as a connected GPS,
+     * so the whole pipeline can be load tested and field problems reproduced without the device.
+     */
+    private class ReplayGps implements Runnable, NmeaFramer.FrameListener, NmeaFramer.UbxFrameListener {
+        /**
+         * How long the parsing loop waits for data before checking if it must stop, in ms.
+         */
+        private static final int READ_TIMEOUT = 1000;
+
+        private final File capture;
+        private final float speed;
+
+        public ReplayGps(File capture, float speed) {
+            this.capture = capture;
+            this.speed = speed;
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            notifyNmeaSentence(buffer, offset, length);
+        }
+
+        @Override
+        public void onUbxFrame(byte[] buffer, int offset, int length) {
+            notifyUbxFrame(buffer, offset, length);
+        }
+
+        @Override
+        public void run() {
+            NmeaFramer framer = new NmeaFramer(this);
+            framer.setUbxListener(this);
+            ReplayTransport transport = null;
+            InputStream in = null;
+            long start = SystemClock.elapsedRealtime();
+
+            try {
+                in = new BufferedInputStream(new FileInputStream(capture), 64 * 1024);
+                // Stamped on the clock the publishing latency is measured with
+                transport = new ReplayTransport(in, speed, new ReplayTransport.Clock() {
+                    @Override
+                    public long nanos() {
+                        return SystemClock.elapsedRealtimeNanos();
+                    }
+                });
+                transport.start();
+
+                while (enabled && !transport.isFinished()) {
+                    long fixTimeout = parser.checkPendingFix();
+                    long timeout = fixTimeout >= 0 ? Math.min(fixTimeout, READ_TIMEOUT) : READ_TIMEOUT;
+
+                    TransferBuffer buffer = transport.take(timeout);
+                    if (buffer != null) {
+                        parser.setReceiveTime(buffer.receiveTime);
+                        framer.feed(buffer.data, 0, buffer.length);
+                        transport.recycle(buffer);
+                        flushNmeaListeners();
+                    }
+                }
+                if (transport.getError() != null) {
+                    Log.e(LOG_TAG, "Replay of " + capture + " stopped", transport.getError());
+                }
+
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to replay " + capture, e);
+            } catch (InterruptedException e) {
+                // closing
+            } finally {
+                if (transport != null) {
+                    transport.close();
+                    // The capture is closed below, once the replay stopped reading it
+                    try {
+                        transport.awaitClosed(READ_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    Log.i(LOG_TAG, "Replayed " + transport.getReplayedBytes() + " bytes of " + capture
+                            + " in " + (SystemClock.elapsedRealtime() - start) + " ms"
+                            + ", USB to mock location latency: " + parser.getPublishLatency()
+                            + ", stale fixes dropped: " + parser.getDroppedFixCount()
+                            + ", sentences accepted: " + parser.getValidator().getAcceptedCount()
+                            + ", bad checksum: " + parser.getValidator().getBadChecksumCount()
+                            + ", malformed: " + parser.getValidator().getMalformedCount()
+                            + ", invalid UBX frames: " + parser.getInvalidUbxFrameCount()
+                            + ", frames too long: " + framer.getOverflowCount());
+                }
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing left to read
+                    }
+                }
+                if (enabled) {
+                    disable();
+                }
+            }
+        }
+    }
+
     /**
      * A utility class used to manage the communication with the bluetooth GPS whn the connection has been established.
      * It is used to read NMEA data from the GPS or to send SIRF III binary commands or SIRF III NMEA commands to the GPS.
@@ -833,13 +1070,23 @@ public class USBGpsManager {
      *
      * @author Herbert von Broeuschmeul
      */
-    private class ConnectedGps extends Thread {
-        private final UsbInterface intf;
-        private final UsbDeviceConnection connection;
+    private class ConnectedGps extends Thread implements NmeaFramer.FrameListener, NmeaFramer.UbxFrameListener {
+        /**
+         * How long the parsing loop waits for data before checking if it must stop, in ms.
+         */
+        private static final int READ_TIMEOUT = 1000;
+        /**
+         * How long a known device has to send valid data at its known speed before it is probed again, in ms.
+         */
+        private static final int PROFILE_SPEED_TIMEOUT = 2500;
         /**
-         * GPS InputStream from which we read data.
+         * How long closing waits for the transport to stop, more than its own read timeout, in ms.
          */
-        private final InputStream in;
+        private static final int TRANSPORT_CLOSE_TIMEOUT = 2000;
+
+        private final UsbDevice device;
+        private final UsbInterface intf;
+        private final UsbDeviceConnection connection;
         /**
          * GPS output stream to which we send data (SIRF III binary commands).
          */
@@ -850,6 +1097,12 @@ public class USBGpsManager {
         private final PrintStream out2;
         private UsbEndpoint endpointIn;
         private UsbEndpoint endpointOut;
+        private GpsTransport transport;
+        private SerialDriver driver;
+        private BaudRateDetector speedDetector;
+        private DeviceProfileCache.Profile profile;
+        // Only used by the reading thread
+        private RawCaptureWriter capture;
         private boolean closed = false;
         /**
          * A boolean which indicates if the GPS is ready to receive data.
@@ -862,6 +1115,7 @@ public class USBGpsManager {
         }
 
         public ConnectedGps(UsbDevice device, String deviceSpeed) {
+            this.device = device;
             /**
              * GPS bluetooth socket used for communication.
              */
@@ -871,7 +1125,18 @@ public class USBGpsManager {
 
             UsbInterface foundInterface = null;
 
-            for (int j = 0; j < device.getInterfaceCount(); j++) {
+            profile = profileCache.get(device);
+            if (profile != null) {
+                foundInterface = findProfileInterface(device, profile);
+                if (foundInterface != null) {
+                    debugLog("Using known device profile: " + profile);
+                } else {
+                    debugLog("Known device profile doesn't match the device, searching interfaces");
+                    profile = null;
+                }
+            }
+
+            for (int j = 0; foundInterface == null && j < device.getInterfaceCount(); j++) {
                 debugLog("Checking interface number " + String.valueOf(j));
 
                 UsbInterface deviceInterface = device.getInterface(j);
@@ -938,159 +1203,9 @@ public class USBGpsManager {
                 debugLog("data claim " + resclaim);
             }
 
-            InputStream tmpIn = null;
             OutputStream tmpOut = null;
             PrintStream tmpOut2 = null;
 
-            tmpIn = new InputStream() {
-                private final byte[] buffer = new byte[256];
-                private final byte[] usbBuffer = new byte[64];
-                private final byte[] oneByteBuffer = new byte[1];
-                private final ByteBuffer bufferWrite = ByteBuffer.wrap(buffer);
-                private final ByteBuffer bufferRead = (ByteBuffer) ByteBuffer.wrap(buffer).limit(0);
-                private boolean closed = false;
-
-                @Override
-                public int read() throws IOException {
-                    int b = 0;
-                    if (debug) Log.d(LOG_TAG, "trying to read data");
-                    int nb = 0;
-                    while ((nb == 0) && (!closed)) {
-                        nb = this.read(oneByteBuffer, 0, 1);
-                    }
-                    if (nb > 0) {
-                        b = oneByteBuffer[0];
-                    } else {
-                        // TODO : if nb = 0 then we have a pb
-                        b = -1;
-                        Log.e(LOG_TAG, "data read() error code: " + nb);
-                    }
-                    if (b <= 0) {
-                        Log.e(LOG_TAG, "data read() error: char " + b);
-                    }
-                    if (debug) Log.d(LOG_TAG, "data: " + b + " char: " + (char) b);
-                    return b;
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#available()
-                 */
-                @Override
-                public int available() throws IOException {
-                    // TODO Auto-generated method stub
-                    if (debug) Log.d(LOG_TAG, "data available " + bufferRead.remaining());
-                    return bufferRead.remaining();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#mark(int)
-                 */
-                @Override
-                public void mark(int readlimit) {
-                    // TODO Auto-generated method stub
-                    if (debug) Log.d(LOG_TAG, "data mark");
-                    super.mark(readlimit);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#markSupported()
-                 */
-                @Override
-                public boolean markSupported() {
-                    // TODO Auto-generated method stub
-                    if (debug) Log.d(LOG_TAG, "data markSupported");
-                    return super.markSupported();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#read(byte[], int, int)
-                 */
-                @Override
-                public int read(byte[] buffer, int offset, int length)
-                        throws IOException {
-                    if (debug)
-                        Log.d(LOG_TAG, "data read buffer - offset: " + offset + " length: " + length);
-
-                    int nb = 0;
-                    ByteBuffer out = ByteBuffer.wrap(buffer, offset, length);
-                    if ((!bufferRead.hasRemaining()) && (!closed)) {
-                        if (debug)
-                            Log.i(LOG_TAG, "data read buffer empty " + Arrays.toString(usbBuffer));
-
-                        int n = connection.bulkTransfer(endpointIn, usbBuffer, 64, 10000);
-
-                        if (debug)
-                            Log.w(LOG_TAG, "data read: nb: " + n + " " + Arrays.toString(usbBuffer));
-
-                        if (n > 0) {
-                            if (n > bufferWrite.remaining()) {
-                                bufferRead.rewind();
-                                bufferWrite.clear();
-                            }
-                            bufferWrite.put(usbBuffer, 0, n);
-                            bufferRead.limit(bufferWrite.position());
-                            if (debug)
-                                Log.d(LOG_TAG, "data read: nb: " + n + " current: " + bufferRead.position() + " limit: " + bufferRead.limit() + " " + Arrays.toString(bufferRead.array()));
-                        } else {
-                            if (debug)
-                                Log.e(LOG_TAG, "data read(buffer...) error: " + nb);
-                        }
-                    }
-                    if (bufferRead.hasRemaining()) {
-                        if (debug)
-                            Log.d(LOG_TAG, "data : asked: " + length + " current: " + bufferRead.position() + " limit: " + bufferRead.limit() + " " + Arrays.toString(bufferRead.array()));
-                        nb = Math.min(bufferRead.remaining(), length);
-                        out.put(bufferRead.array(), bufferRead.position() + bufferRead.arrayOffset(), nb);
-                        bufferRead.position(bufferRead.position() + nb);
-                        if (debug)
-                            Log.d(LOG_TAG, "data : given: " + nb + " current: " + bufferRead.position() + " limit: " + bufferRead.limit() + " " + Arrays.toString(bufferRead.array()));
-                        if (debug)
-                            Log.d(LOG_TAG, "data : given: " + nb + " offset: " + offset + " " + Arrays.toString(buffer));
-                    }
-                    return nb;
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#read(byte[])
-                 */
-
-                @Override
-                public int read(byte[] buffer) throws IOException {
-                    // TODO Auto-generated method stub
-                    log("data read buffer");
-                    return super.read(buffer);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#reset()
-                 */
-                @Override
-                public synchronized void reset() throws IOException {
-                    // TODO Auto-generated method stub
-                    log("data reset");
-                    super.reset();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#skip(long)
-                 */
-                @Override
-                public long skip(long byteCount) throws IOException {
-                    // TODO Auto-generated method stub
-                    log("data skip");
-                    return super.skip(byteCount);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#close()
-                 */
-                @Override
-                public void close() throws IOException {
-                    super.close();
-                    closed = true;
-                }
-            };
-
             tmpOut = new OutputStream() {
                 private final byte[] buffer = new byte[256];
                 private final byte[] oneByteBuffer = new byte[1];
@@ -1175,7 +1290,6 @@ public class USBGpsManager {
                     Log.e(LOG_TAG, "error while getting usb output streams", e);
             }
 
-            in = tmpIn;
             out = tmpOut;
             out2 = tmpOut2;
 
@@ -1188,91 +1302,28 @@ public class USBGpsManager {
                 return;
             }
 
-            final int[] speedList = {Integer.parseInt(deviceSpeed), 1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200, 230400, 460800};
-            final byte[] data = {(byte) 0xC0, 0x12, 0x00, 0x00, 0x00, 0x00, 0x08};
-            final ByteBuffer connectionSpeedBuffer = ByteBuffer.wrap(data, 0, 4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            final byte[] datax = new byte[7];
-            final ByteBuffer connectionSpeedInfoBuffer = ByteBuffer.wrap(datax, 0, 7).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            final int res1 = connection.controlTransfer(0x21, 34, 0, 0, null, 0, TIMEOUT);
+
+            // Each bridge chip has its own way of setting the baud rate
+            if (profile != null) {
+                driver = SerialDrivers.create(profile.driver, device, connection, intf);
+            }
+            if (driver == null) {
+                driver = SerialDrivers.create(device, connection, intf);
+            }
+            debugLog("Using serial driver: " + driver.getName());
+            if (!driver.open()) {
+                debugLog("Serial driver initialization failed");
+            }
 
             if (setDeviceSpeed) {
                 debugLog("Setting connection speed to: " + deviceSpeed);
                 try {
-                    connectionSpeedBuffer.putInt(0, Integer.parseInt(deviceSpeed)); // Put the value in
-                    connection.controlTransfer(0x21, 32, 0, 0, data, 7, TIMEOUT); // Set baudrate
-                } catch (NullPointerException e) {
+                    driver.setBaudRate(Integer.parseInt(deviceSpeed)); // Set baudrate
+                } catch (NumberFormatException e) {
                     if (debug)
                         Log.e(LOG_TAG, "Could not set speed");
                     close();
                 }
-
-            } else {
-                Thread autoConf = new Thread() {
-
-                    /* (non-Javadoc)
-                     * @see java.lang.Thread#run()
-                     */
-                    @Override
-                    public void run() {
-                        try {
-                            // Get the current data rate from the device and transfer it into datax
-                            int res0 = connection.controlTransfer(0xA1, 33, 0, 0, datax, 7, TIMEOUT);
-
-                            // Datax is used in a byte buffer which this now turns into an integer
-                            // and sets how preference speed to that speed
-                            USBGpsManager.this.deviceSpeed = Integer.toString(connectionSpeedInfoBuffer.getInt(0));
-
-                            // logs the bytes we got
-                            debugLog("info connection: " + Arrays.toString(datax));
-                            debugLog("info connection speed: " + USBGpsManager.this.deviceSpeed);
-
-                            Thread.sleep(4000);
-                            debugLog("trying to use speed in range: " + Arrays.toString(speedList));
-                            for (int speed : speedList) {
-                                if (!ready && !closed) {
-                                    // set a new datarate
-                                    USBGpsManager.this.deviceSpeed = Integer.toString(speed);
-                                    debugLog("trying to use speed " + speed);
-                                    debugLog("initializing connection:  " + speed + " baud and 8N1 (0 bits no parity 1 stop bit");
-
-                                    // Put that data rate into a new data byte array
-                                    connectionSpeedBuffer.putInt(0, speed);
-
-                                    // And set the device to that data rate
-                                    int res2 = connection.controlTransfer(0x21, 32, 0, 0, data, 7, TIMEOUT);
-
-                                    debugLog("data init " + res1 + " " + res2);
-                                    Thread.sleep(4000);
-                                }
-                            }
-                            // And get the current data rate again
-                            res0 = connection.controlTransfer(0xA1, 33, 0, 0, datax, 7, TIMEOUT);
-
-                            debugLog("info connection: " + Arrays.toString(datax));
-                            debugLog("info connection speed: " + connectionSpeedInfoBuffer.getInt(0));
-
-                            if (!closed) {
-                                Thread.sleep(5000);
-                            }
-                        } catch (InterruptedException e) {
-                            if (debug)
-                                Log.e(LOG_TAG, "autoconf thread interrupted", e);
-                        } finally {
-                            if ((!closed) && (!ready)) {// || (lastRead + 4000 < SystemClock.uptimeMillis())) {
-                                setMockLocationProviderOutOfService();
-                                if (debug)
-                                    Log.e(LOG_TAG, "Something went wrong in auto config");
-                                // cleanly closing everything...
-                                ConnectedGps.this.close();
-                                USBGpsManager.this.disableIfNeeded();
-                            }
-                        }
-                    }
-
-                };
-                debugLog("trying to find speed");
-                ready = false;
-                autoConf.start();
             }
         }
 
@@ -1280,42 +1331,114 @@ public class USBGpsManager {
             return ready;
         }
 
-        public void run() {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), 256);
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            onFrameParsed(notifyNmeaSentence(buffer, offset, length));
+        }
+
+        @Override
+        public void onUbxFrame(byte[] buffer, int offset, int length) {
+            onFrameParsed(notifyUbxFrame(buffer, offset, length));
+        }
 
-                // Sentence to read from the device
-                String s;
+        /**
+         * @param valid true if the frame just parsed was valid, which means the connection is good
+         */
+        private void onFrameParsed(boolean valid) {
+            if (valid) {
+                if (!ready) {
+                    ready = true;
+                    saveProfile();
+                }
 
-                long now = SystemClock.uptimeMillis();
+                if (problemNotified) {
+                    problemNotified = false;
+                    // reset eventual disabling cause
+                    setDisableReason(0);
+                    // connection is good so resetting the number of connection try
+                    debugLog("connection is good so resetting the number of connection retries");
+                    nbRetriesRemaining = maxConnectionRetries;
+                    notificationManager.cancel(R.string.connection_problem_notification_title);
+                }
+            }
+        }
 
-                // we will wait more at the beginning of the connection
-                while ((enabled) && (!closed)) {
+        public void run() {
+            NmeaFramer framer = new NmeaFramer(this);
+            framer.setUbxListener(this);
+            try {
+                if (captureRawData) {
+                    // Before reading, creating the first file waits for the storage
                     try {
-                        s = reader.readLine();
+                        capture = new RawCaptureWriter(USBGpsProviderService.getCaptureDir(appContext),
+                                RAW_CAPTURE_SEGMENT_SIZE, RAW_CAPTURE_SEGMENTS);
                     } catch (IOException e) {
-                        s = null;
+                        Log.e(LOG_TAG, "Unable to capture the GPS data", e);
                     }
+                }
+                int transferSize;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    // Keeps several transfers posted, so nothing is lost between two of them
+                    UsbRequestTransport requestTransport = new UsbRequestTransport(connection, endpointIn, transferMultiplier);
+                    transferSize = requestTransport.getTransferSize();
+                    transport = requestTransport;
+                } else {
+                    UsbBulkReader bulkReader = new UsbBulkReader(connection, endpointIn, transferMultiplier);
+                    transferSize = bulkReader.getTransferSize();
+                    transport = bulkReader;
+                }
+                debugLog("Reading GPS data with " + transport.getClass().getSimpleName()
+                        + ", " + transferSize + " bytes per transfer (multiplier " + transferMultiplier + ")");
+                transport.start();
+
+                long profileSpeedDeadline = 0;
+                if (!setDeviceSpeed) {
+                    if (profile != null && profile.baudRate > 0) {
+                        // Known device, no need to probe unless its speed doesn't work anymore
+                        debugLog("Using known device speed: " + profile.baudRate);
+                        driver.setBaudRate(profile.baudRate);
+                        USBGpsManager.this.deviceSpeed = Integer.toString(profile.baudRate);
+                        profileSpeedDeadline = SystemClock.elapsedRealtime() + PROFILE_SPEED_TIMEOUT;
+
+                    } else if (!detectDeviceSpeed()) {
+                        autoConfFailed();
+                        return;
+                    }
+                }
 
-                    if (s != null) {
-                        //Log.v(LOG_TAG, "data: "+System.currentTimeMillis()+" "+s);
-                        if (notifyNmeaSentence(s + "\r\n")) {
-                            ready = true;
-
-                            if (problemNotified) {
-                                problemNotified = false;
-                                // reset eventual disabling cause
-                                setDisableReason(0);
-                                // connection is good so resetting the number of connection try
-                                debugLog("connection is good so resetting the number of connection retries");
-                                nbRetriesRemaining = maxConnectionRetries;
-                                notificationManager.cancel(R.string.connection_problem_notification_title);
+                while ((enabled) && (!closed)) {
+                    // Publishes the fix of an epoch whose last sentences don't come, and wakes up in time for it
+                    long fixTimeout = parser.checkPendingFix();
+                    long timeout = fixTimeout >= 0 ? Math.min(fixTimeout, READ_TIMEOUT) : READ_TIMEOUT;
+
+                    // Blocks until the transport has some data, so nothing is delayed and nothing spins
+                    TransferBuffer buffer = transport.take(timeout);
+
+                    if (profileSpeedDeadline != 0 && (ready || SystemClock.elapsedRealtime() > profileSpeedDeadline)) {
+                        profileSpeedDeadline = 0;
+                        if (!ready) {
+                            debugLog("Known device speed doesn't work anymore");
+                            if (buffer != null) {
+                                transport.recycle(buffer);
                             }
+                            if (!detectDeviceSpeed()) {
+                                autoConfFailed();
+                                return;
+                            }
+                            continue;
                         }
-                        SystemClock.sleep(5);
-                    } else {
-                        log("data: not ready " + System.currentTimeMillis());
-                        SystemClock.sleep(100);
+                    }
+
+                    if (buffer != null) {
+                        parser.setReceiveTime(buffer.receiveTime);
+                        int length = driver.filterReceivedData(buffer.data, buffer.length);
+                        if (capture != null) {
+                            capture.write(buffer.data, 0, length, buffer.receiveTime);
+                        }
+                        // Complete sentences are handed to onFrame as they are found
+                        framer.feed(buffer.data, 0, length);
+                        transport.recycle(buffer);
+                        flushNmeaListeners();
                     }
                 }
                 if (closed) {
@@ -1331,53 +1454,168 @@ public class USBGpsManager {
             } finally {
                 // cleanly closing everything...
                 debugLog("Closing read thread");
+                NmeaValidator validator = parser.getValidator();
+                Log.i(LOG_TAG, "USB to mock location latency: " + parser.getPublishLatency()
+                        + ", stale fixes dropped: " + parser.getDroppedFixCount()
+                        + ", sentences accepted: " + validator.getAcceptedCount()
+                        + ", bad checksum: " + validator.getBadChecksumCount()
+                        + ", malformed: " + validator.getMalformedCount()
+                        + ", invalid UBX frames: " + parser.getInvalidUbxFrameCount()
+                        + ", frames too long: " + framer.getOverflowCount());
+                if (!nmeaListeners.isEmpty()) {
+                    Log.i(LOG_TAG, "NMEA listeners: " + nmeaListeners);
+                }
+                if (capture != null) {
+                    capture.close();
+                    Log.i(LOG_TAG, "Raw capture: " + capture.getCapturedBytes() + " bytes, "
+                            + capture.getDroppedChunks() + " chunks dropped", capture.getError());
+                    capture = null;
+                }
                 this.close();
                 disableIfNeeded();
             }
         }
 
+        private void autoConfFailed() {
+            if (!closed) {
+                setMockLocationProviderOutOfService();
+                if (debug)
+                    Log.e(LOG_TAG, "Something went wrong in auto config");
+            }
+        }
+
+        /**
+         * Finds the interface and endpoints given by a device profile.
+         *
+         * @return the interface, or null if the device doesn't match the profile
+         */
+        private UsbInterface findProfileInterface(UsbDevice device, DeviceProfileCache.Profile profile) {
+            if (profile.interfaceIndex < 0 || profile.interfaceIndex >= device.getInterfaceCount()) {
+                return null;
+            }
+
+            UsbInterface deviceInterface = device.getInterface(profile.interfaceIndex);
+            UsbEndpoint foundInEndpoint = null;
+            UsbEndpoint foundOutEndpoint = null;
+
+            for (int i = 0; i < deviceInterface.getEndpointCount(); i++) {
+                UsbEndpoint interfaceEndpoint = deviceInterface.getEndpoint(i);
+                if (interfaceEndpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                    continue;
+                }
+                if (interfaceEndpoint.getAddress() == profile.inEndpointAddress) {
+                    foundInEndpoint = interfaceEndpoint;
+                } else if (interfaceEndpoint.getAddress() == profile.outEndpointAddress) {
+                    foundOutEndpoint = interfaceEndpoint;
+                }
+            }
+
+            if (foundInEndpoint == null || foundOutEndpoint == null) {
+                return null;
+            }
+            endpointIn = foundInEndpoint;
+            endpointOut = foundOutEndpoint;
+            return deviceInterface;
+        }
+
+        /**
+         * Remembers how the device was connected, once it has sent valid data.
+         */
+        private void saveProfile() {
+            int interfaceIndex = -1;
+            for (int i = 0; i < device.getInterfaceCount(); i++) {
+                if (device.getInterface(i) == intf) {
+                    interfaceIndex = i;
+                    break;
+                }
+            }
+
+            int speed;
+            try {
+                speed = Integer.parseInt(USBGpsManager.this.deviceSpeed);
+            } catch (NumberFormatException e) {
+                speed = -1;
+            }
+
+            DeviceProfileCache.Profile newProfile = new DeviceProfileCache.Profile(
+                    interfaceIndex, endpointIn.getAddress(), endpointOut.getAddress(), speed, driver.getName());
+            if (!newProfile.equals(profile)) {
+                debugLog("Saving device profile: " + newProfile);
+                profileCache.put(device, newProfile);
+                profile = newProfile;
+            }
+        }
+
+        /**
+         * Finds the speed of the GPS, trying the one of its profile first, even if the rest of the profile
+         * doesn't match anymore. The speed found is saved with the profile, once the GPS sends valid data.
+         *
+         * @return true if the speed was found
+         */
+        private boolean detectDeviceSpeed() throws InterruptedException {
+            DeviceProfileCache.Profile knownProfile = profileCache.get(device);
+            int lastSpeed = knownProfile != null ? knownProfile.baudRate : -1;
+
+            debugLog("trying to find speed, last known: " + lastSpeed);
+            speedDetector = new BaudRateDetector(driver, transport);
+            int speed = speedDetector.detect(lastSpeed, driver.getBaudRate());
+            if (speed < 0) {
+                return false;
+            }
+
+            debugLog("found speed: " + speed);
+            USBGpsManager.this.deviceSpeed = Integer.toString(speed);
+            return true;
+        }
+
         public void close() {
             ready = false;
             closed = true;
+            if (speedDetector != null) {
+                speedDetector.cancel();
+            }
+            if (transport != null) {
+                transport.close();
+                // The transport cancels and closes its requests when it stops: the interface and the
+                // connection must outlive them
+                try {
+                    if (!transport.awaitClosed(TRANSPORT_CLOSE_TIMEOUT)) {
+                        if (debug)
+                            Log.e(LOG_TAG, "transport still running, closing the usb connection anyway");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             try {
-                debugLog("closing USB GPS output stream");
-                in.close();
+                debugLog("closing USB GPS output streams");
+                out2.close();
+                out.close();
 
             } catch (IOException e) {
                 if (debug)
-                    Log.e(LOG_TAG, "error while closing GPS NMEA output stream", e);
+                    Log.e(LOG_TAG, "error while closing GPS output streams", e);
 
             } finally {
-                try {
-                    debugLog("closing USB GPS input streams");
-                    out2.close();
-                    out.close();
-
-                } catch (IOException e) {
-                    if (debug)
-                        Log.e(LOG_TAG, "error while closing GPS input streams", e);
-
-                } finally {
-                    debugLog("releasing usb interface for connection: " + connection);
+                debugLog("releasing usb interface for connection: " + connection);
 
-                    boolean released = false;
-                    if (intf != null) {
-                        released = connection.releaseInterface(intf);
-                    }
+                boolean released = false;
+                if (intf != null) {
+                    released = connection.releaseInterface(intf);
+                }
 
-                    if (released) {
-                        debugLog("usb interface released for connection: " + connection);
+                if (released) {
+                    debugLog("usb interface released for connection: " + connection);
 
-                    } else if (intf != null) {
-                        debugLog("unable to release usb interface for connection: " + connection);
-                    } else {
-                        debugLog("no interface to release");
-                    }
+                } else if (intf != null) {
+                    debugLog("unable to release usb interface for connection: " + connection);
+                } else {
+                    debugLog("no interface to release");
+                }
 
-                    debugLog("closing usb connection: " + connection);
-                    connection.close();
+                debugLog("closing usb connection: " + connection);
+                connection.close();
 
-                }
             }
         }
     }
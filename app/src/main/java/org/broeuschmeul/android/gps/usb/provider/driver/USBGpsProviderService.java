@@ -31,6 +31,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationListener;
@@ -39,16 +40,23 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
+import org.broeuschmeul.android.gps.nmea.transport.ReplayTransport;
+import org.broeuschmeul.android.gps.nmea.util.TrackArchive;
+import org.broeuschmeul.android.gps.nmea.util.TrackArchiveWriter;
 import org.broeuschmeul.android.gps.usb.provider.R;
+import org.broeuschmeul.android.gps.usb.provider.USBGpsApplication;
 import org.broeuschmeul.android.gps.usb.provider.ui.GpsInfoActivity;
 import org.broeuschmeul.android.gps.usb.provider.ui.USBGpsSettingsFragment;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Objects;
 
 /**
@@ -62,6 +70,17 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
             "org.broeuschmeul.android.gps.usb.provider.action.START_GPS_PROVIDER";
     public static final String ACTION_STOP_GPS_PROVIDER =
             "org.broeuschmeul.android.gps.usb.provider.action.STOP_GPS_PROVIDER";
+    /**
+     * Extra of {@link #ACTION_START_GPS_PROVIDER}: name of a raw capture of the {@link #getCaptureDir(Context)
+     * capture directory} to replay instead of reading the USB GPS. Only honoured by debug builds, the service
+     * itself can only be started from the application.
+     */
+    public static final String EXTRA_REPLAY_CAPTURE = "replayCapture";
+    /**
+     * Extra of {@link #ACTION_START_GPS_PROVIDER}: replay speed, 1 for real time (the default), 0 for
+     * as fast as possible.
+     */
+    public static final String EXTRA_REPLAY_SPEED = "replaySpeed";
 
     public static final String PREF_START_GPS_PROVIDER = "startGps";
     public static final String PREF_START_ON_BOOT = "startOnBoot";
@@ -74,7 +93,10 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
     public static final String PREF_GPS_DEVICE_VENDOR_ID = "usbDeviceVendorId";
     public static final String PREF_GPS_DEVICE_PRODUCT_ID = "usbDeviceProductId";
     public static final String PREF_GPS_DEVICE_SPEED = "gpsDeviceSpeed";
+    public static final String PREF_USB_TRANSFER_MULTIPLIER = "usbTransferMultiplier";
     public static final String PREF_TOAST_LOGGING = "showToasts";
+    public static final String PREF_RAW_CAPTURE = "rawCapture";
+    public static final String PREF_TRACK_ARCHIVE = "trackArchive";
 
     public static final String PREF_SET_TIME = "setTime";
     public static final String PREF_ABOUT = "about";
@@ -84,9 +106,13 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
     private static final String LOG_TAG = USBGpsProviderService.class.getSimpleName();
 
     private static final String NOTIFICATION_CHANNEL_ID = "service_notification";
+    private static final String CAPTURE_DIR = "captures";
+    private static final String TRACK_ARCHIVE_DIR = "tracks";
     private static Context appContext = null;
     private static Boolean started = false;
     private USBGpsManager gpsManager = null;
+    // Written on the thread delivering the NMEA sentences, closed on the main thread
+    private TrackArchiveWriter trackArchive = null;
     private boolean debugToasts = false;
     private NotificationManager notificationManager;
 
@@ -126,6 +152,19 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
                 }
 
                 gpsManager = new USBGpsManager(this, vendorId, productId, maxConRetries);
+                // Shares the NMEA stream and the satellites with the applications bound to SharedNmeaService
+                gpsManager.setSharedOutput(((USBGpsApplication) getApplication()).getSharedNmeaOutput());
+
+                String replayCapture = intent.getStringExtra(EXTRA_REPLAY_CAPTURE);
+                if (replayCapture != null && !isDebuggable()) {
+                    Log.w(LOG_TAG, "Ignoring the replay of " + replayCapture + ", only debug builds can replay");
+                } else if (replayCapture != null) {
+                    // Only a file name, so nothing outside of the capture directory can be read
+                    File capture = new File(getCaptureDir(this), new File(replayCapture).getName());
+                    float speed = intent.getFloatExtra(EXTRA_REPLAY_SPEED, ReplayTransport.REAL_TIME);
+                    log("replaying " + capture + " at speed " + speed);
+                    gpsManager.setReplay(capture, speed);
+                }
                 boolean enabled = gpsManager.enable();
 
                 if (sharedPreferences.getBoolean(PREF_START_GPS_PROVIDER, false) != enabled) {
@@ -136,6 +175,10 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
                 if (enabled) {
                     gpsManager.enableMockLocationProvider(mockProvider);
 
+                    if (sharedPreferences.getBoolean(PREF_TRACK_ARCHIVE, false) && openTrackArchive()) {
+                        gpsManager.addNmeaListener(this);
+                    }
+
                     if (sharedPreferences.getInt(getString(R.string.pref_disable_reason_key), 0) != 0) {
                         edit.putInt(getString(R.string.pref_disable_reason_key), 0);
                         edit.apply();
@@ -185,7 +228,8 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
                 // We received a start intent even though it's already running so restart
                 stopSelf();
                 startService(new Intent(this, USBGpsProviderService.class)
-                        .setAction(intent.getAction()));
+                        .setAction(intent.getAction())
+                        .putExtras(intent));
             }
         } else if (ACTION_STOP_GPS_PROVIDER.equals(intent.getAction())) {
             if (sharedPreferences.getBoolean(PREF_START_GPS_PROVIDER, true)) {
@@ -209,9 +253,11 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
                 showToast(R.string.msg_gps_provider_stopped);
             }
             manager.removeNmeaListener(this);
+            manager.setSharedOutput(null);
             manager.disableMockLocationProvider();
             manager.disable();
         }
+        closeTrackArchive();
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         SharedPreferences.Editor edit = sharedPreferences.edit();
 
@@ -223,6 +269,29 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
         super.onDestroy();
     }
 
+    /**
+     * @return where the raw captures are kept, in the external files of the application when available
+     * so they can be pulled and pushed with adb
+     */
+    public static File getCaptureDir(Context context) {
+        return getFilesDir(context, CAPTURE_DIR);
+    }
+
+    /**
+     * @return where the track archive is kept, see {@link TrackArchive}
+     */
+    public static File getTrackArchiveDir(Context context) {
+        return getFilesDir(context, TRACK_ARCHIVE_DIR);
+    }
+
+    private static File getFilesDir(Context context, String name) {
+        File dir = context.getExternalFilesDir(name);
+        if (dir == null) {
+            dir = new File(context.getFilesDir(), name);
+        }
+        return dir;
+    }
+
     /**
      * Checks if the applications has the given runtime permission
      */
@@ -245,8 +314,37 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
         }
     }
 
-    private void addNMEAString(String data) {
+    private synchronized boolean openTrackArchive() {
+        try {
+            trackArchive = new TrackArchiveWriter(getTrackArchiveDir(this));
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to open the track archive", e);
+            return false;
+        }
+    }
+
+    private synchronized void closeTrackArchive() {
+        if (trackArchive != null) {
+            try {
+                trackArchive.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to close the track archive", e);
+            }
+            trackArchive = null;
+        }
+    }
 
+    private synchronized void addNMEAString(long timestamp, String data) {
+        if (trackArchive == null) {
+            return;
+        }
+        try {
+            trackArchive.add(timestamp, data);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to write the track archive, stopping it", e);
+            closeTrackArchive();
+        }
     }
 
     /* (non-Javadoc)
@@ -255,9 +353,14 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
     @Override
     public IBinder onBind(Intent intent) {
         log("trying access IBinder");
+        // Other applications bind to SharedNmeaService
         return null;
     }
 
+    private boolean isDebuggable() {
+        return (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
     @Override
     public void onLocationChanged(Location location) {
 
@@ -281,7 +384,7 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
 
     @Override
     public void onNmeaReceived(long timestamp, String data) {
-        addNMEAString(data);
+        addNMEAString(timestamp, data);
     }
 
     private void log(String message) {
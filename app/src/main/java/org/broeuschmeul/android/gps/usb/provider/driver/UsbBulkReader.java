@@ -0,0 +1,127 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.nmea.transport.GpsTransport;
+import org.broeuschmeul.android.gps.nmea.transport.TransferBuffer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the bulk IN endpoint of the GPS in its own thread, so the next transfer is already waiting
+ * for data while the previous one is being parsed.
+ * <p>
+ * The transfers are made into a small pool of preallocated buffers: the reader takes a free buffer,
+ * fills it and queues it, the parsing thread takes the filled buffers with {@link #take(long)}
+ * and gives them back with {@link #recycle(TransferBuffer)}. No memory is allocated while reading.
+ * <p>
+ * Each transfer is a multiple of the max packet size of the endpoint, so a full speed bridge (64 bytes)
+ * and a high speed one (512 bytes) both get transfers their host controller can complete in one go.
+ */
+public class UsbBulkReader extends Thread implements GpsTransport {
+    private static final String LOG_TAG = UsbBulkReader.class.getSimpleName();
+
+    /**
+     * Number of buffers, one being parsed while the others are being filled.
+     */
+    public static final int BUFFER_COUNT = 4;
+    /**
+     * How long a transfer waits for data before the reader checks if it must stop, in ms.
+     */
+    private static final int READ_TIMEOUT = 1000;
+    /**
+     * Back off step after a failed transfer, in ms.
+     */
+    private static final int READ_ERROR_BACKOFF = 10;
+
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+    private final BlockingQueue<TransferBuffer> freeBuffers;
+    private final BlockingQueue<TransferBuffer> filledBuffers;
+    private final int transferSize;
+    private volatile boolean closed = false;
+
+    /**
+     * @param connection         an open connection to the GPS, with its interface claimed
+     * @param endpoint           the bulk IN endpoint to read from
+     * @param transferMultiplier number of max size packets read by a single transfer
+     */
+    public UsbBulkReader(UsbDeviceConnection connection, UsbEndpoint endpoint, int transferMultiplier) {
+        super("UsbBulkReader");
+        this.connection = connection;
+        this.endpoint = endpoint;
+        this.transferSize = Math.max(1, transferMultiplier) * endpoint.getMaxPacketSize();
+
+        freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        filledBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            freeBuffers.add(new TransferBuffer(transferSize));
+        }
+    }
+
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    @Override
+    public void run() {
+        int failures = 0;
+
+        try {
+            while (!closed) {
+                TransferBuffer buffer = freeBuffers.take();
+
+                long start = SystemClock.elapsedRealtime();
+                int nb = connection.bulkTransfer(endpoint, buffer.data, buffer.data.length, READ_TIMEOUT);
+
+                if (nb > 0) {
+                    failures = 0;
+                    buffer.length = nb;
+                    buffer.receiveTime = SystemClock.elapsedRealtimeNanos();
+                    filledBuffers.put(buffer);
+
+                } else {
+                    freeBuffers.put(buffer);
+
+                    if (!closed && SystemClock.elapsedRealtime() - start < READ_TIMEOUT / 2) {
+                        // The transfer failed straight away rather than timing out,
+                        // back off a little so a broken connection doesn't make us spin
+                        failures++;
+                        Log.w(LOG_TAG, "data: read error " + nb + " (" + failures + ")");
+                        Thread.sleep(Math.min(failures, 10) * READ_ERROR_BACKOFF);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing
+        }
+    }
+
+    @Override
+    public TransferBuffer take(long timeout) throws InterruptedException {
+        return filledBuffers.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recycle(TransferBuffer buffer) {
+        buffer.length = 0;
+        freeBuffers.offer(buffer);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        interrupt();
+    }
+
+    @Override
+    public boolean awaitClosed(long timeout) throws InterruptedException {
+        join(timeout);
+        return !isAlive();
+    }
+}
@@ -0,0 +1,171 @@
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.nmea.transport.GpsTransport;
+import org.broeuschmeul.android.gps.nmea.transport.TransferBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the bulk IN endpoint of the GPS with several asynchronous {@link UsbRequest}s,
+ * so the host controller always has a buffer posted, even while a completed one is being handled.
+ * <p>
+ * With a single synchronous transfer, the data sent between the end of a transfer and the start of
+ * the next one can be lost at high baud rates. Here a completed request is copied into a
+ * {@link TransferBuffer} and queued again straight away.
+ * <p>
+ * Needs Android 8.0 (API 26), for {@link UsbRequest#queue(ByteBuffer)} to report the number of bytes
+ * received and for {@link UsbDeviceConnection#requestWait(long)}.
+ */
+public class UsbRequestTransport extends Thread implements GpsTransport {
+    private static final String LOG_TAG = UsbRequestTransport.class.getSimpleName();
+
+    /**
+     * Number of IN requests kept queued.
+     */
+    public static final int REQUEST_COUNT = 4;
+    /**
+     * Number of buffers handed to the parsing thread.
+     */
+    private static final int BUFFER_COUNT = 8;
+    /**
+     * How long to wait for a request before checking if the transport must stop, in ms.
+     */
+    private static final int READ_TIMEOUT = 1000;
+    /**
+     * Back off step after a failed wait, in ms.
+     */
+    private static final int READ_ERROR_BACKOFF = 10;
+
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+    private final int transferSize;
+    private final BlockingQueue<TransferBuffer> freeBuffers;
+    private final BlockingQueue<TransferBuffer> filledBuffers;
+    private volatile boolean closed = false;
+
+    /**
+     * @param connection         an open connection to the GPS, with its interface claimed
+     * @param endpoint           the bulk IN endpoint to read from
+     * @param transferMultiplier number of max size packets read by a single request
+     */
+    public UsbRequestTransport(UsbDeviceConnection connection, UsbEndpoint endpoint, int transferMultiplier) {
+        super("UsbRequestTransport");
+        this.connection = connection;
+        this.endpoint = endpoint;
+        this.transferSize = Math.max(1, transferMultiplier) * endpoint.getMaxPacketSize();
+
+        freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        filledBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            freeBuffers.add(new TransferBuffer(transferSize));
+        }
+    }
+
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    @Override
+    public void run() {
+        UsbRequest[] requests = new UsbRequest[REQUEST_COUNT];
+        int failures = 0;
+
+        try {
+            for (int i = 0; i < REQUEST_COUNT; i++) {
+                UsbRequest request = new UsbRequest();
+                if (!request.initialize(connection, endpoint)) {
+                    Log.e(LOG_TAG, "unable to initialize usb request");
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.allocate(transferSize);
+                request.setClientData(data);
+                requests[i] = request;
+                if (!request.queue(data)) {
+                    Log.e(LOG_TAG, "unable to queue usb request");
+                    return;
+                }
+            }
+
+            while (!closed) {
+                UsbRequest request;
+                try {
+                    request = connection.requestWait(READ_TIMEOUT);
+                } catch (TimeoutException e) {
+                    continue;
+                }
+
+                if (request == null) {
+                    if (closed) {
+                        break;
+                    }
+                    // The wait failed, back off a little so a broken connection doesn't make us spin
+                    failures++;
+                    Log.w(LOG_TAG, "data: request wait error (" + failures + ")");
+                    Thread.sleep(Math.min(failures, 10) * READ_ERROR_BACKOFF);
+                    continue;
+                }
+
+                long receiveTime = SystemClock.elapsedRealtimeNanos();
+                ByteBuffer data = (ByteBuffer) request.getClientData();
+                int nb = data.position();
+
+                if (nb > 0) {
+                    failures = 0;
+                    TransferBuffer buffer = freeBuffers.take();
+                    System.arraycopy(data.array(), data.arrayOffset(), buffer.data, 0, nb);
+                    buffer.length = nb;
+                    buffer.receiveTime = receiveTime;
+                    filledBuffers.put(buffer);
+                }
+
+                data.clear();
+                if (!closed && !request.queue(data)) {
+                    Log.e(LOG_TAG, "unable to queue usb request");
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } finally {
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.cancel();
+                    request.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public TransferBuffer take(long timeout) throws InterruptedException {
+        return filledBuffers.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recycle(TransferBuffer buffer) {
+        buffer.length = 0;
+        freeBuffers.offer(buffer);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        interrupt();
+    }
+
+    @Override
+    public boolean awaitClosed(long timeout) throws InterruptedException {
+        join(timeout);
+        return !isAlive();
+    }
+}
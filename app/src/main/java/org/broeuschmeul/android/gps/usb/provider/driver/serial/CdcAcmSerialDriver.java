@@ -0,0 +1,53 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Driver of standard USB CDC ACM devices, which is what most GPS with a native USB port are
+ * (u-blox, SiRF, MediaTek...). Also used for unknown devices.
+ */
+public class CdcAcmSerialDriver extends SerialDriver {
+    private static final int REQUEST_TYPE_OUT = 0x21;
+    private static final int REQUEST_TYPE_IN = 0xA1;
+    private static final int SET_LINE_CODING = 0x20;
+    private static final int GET_LINE_CODING = 0x21;
+    private static final int SET_CONTROL_LINE_STATE = 0x22;
+
+    /**
+     * Line coding: baud rate (4 bytes), 1 stop bit, no parity, 8 data bits
+     */
+    private final byte[] lineCoding = {(byte) 0xC0, 0x12, 0x00, 0x00, 0x00, 0x00, 0x08};
+
+    public CdcAcmSerialDriver(UsbDeviceConnection connection, UsbInterface intf) {
+        super(connection, intf);
+    }
+
+    @Override
+    public String getName() {
+        return "cdc";
+    }
+
+    @Override
+    public boolean open() {
+        return connection.controlTransfer(REQUEST_TYPE_OUT, SET_CONTROL_LINE_STATE, 0, 0, null, 0, TIMEOUT) >= 0;
+    }
+
+    @Override
+    public boolean setBaudRate(int baudRate) {
+        ByteBuffer.wrap(lineCoding, 0, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, baudRate);
+        return connection.controlTransfer(REQUEST_TYPE_OUT, SET_LINE_CODING, 0, 0, lineCoding, lineCoding.length, TIMEOUT) >= 0;
+    }
+
+    @Override
+    public int getBaudRate() {
+        byte[] current = new byte[7];
+        if (connection.controlTransfer(REQUEST_TYPE_IN, GET_LINE_CODING, 0, 0, current, current.length, TIMEOUT) < 4) {
+            return -1;
+        }
+        return ByteBuffer.wrap(current, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+}
@@ -0,0 +1,84 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * Driver of WCH CH340 / CH341 bridges.
+ */
+public class Ch34xSerialDriver extends SerialDriver {
+    private static final int REQUEST_TYPE_OUT = 0x40;
+    private static final int REQUEST_TYPE_IN = 0xC0;
+
+    private static final int READ_VERSION = 0x5F;
+    private static final int WRITE_REGISTER = 0x9A;
+    private static final int SERIAL_INIT = 0xA1;
+    private static final int MODEM_CONTROL = 0xA4;
+
+    private static final int REG_LCR = 0x2518;
+    private static final int REG_PRESCALER = 0x1312;
+    private static final int REG_DIVISOR = 0x0F2C;
+
+    /**
+     * Receive and transmit enabled, 8 data bits, no parity, 1 stop bit
+     */
+    private static final int LCR_8N1 = 0xC3;
+    /**
+     * DTR and RTS set (the bits are active low)
+     */
+    private static final int MODEM_DTR_RTS = ~(0x20 | 0x40) & 0xFF;
+
+    private static final long BAUD_BASE_FACTOR = 1532620800L;
+    private static final int BAUD_BASE_DIVISOR_MAX = 3;
+
+    public Ch34xSerialDriver(UsbDeviceConnection connection, UsbInterface intf) {
+        super(connection, intf);
+    }
+
+    @Override
+    public String getName() {
+        return "ch34x";
+    }
+
+    @Override
+    public boolean open() {
+        byte[] version = new byte[2];
+        connection.controlTransfer(REQUEST_TYPE_IN, READ_VERSION, 0, 0, version, version.length, TIMEOUT);
+
+        return controlOut(SERIAL_INIT, 0, 0)
+                && controlOut(WRITE_REGISTER, REG_LCR, LCR_8N1)
+                && controlOut(SERIAL_INIT, 0x501F, 0xD90A)
+                && controlOut(MODEM_CONTROL, MODEM_DTR_RTS, 0);
+    }
+
+    @Override
+    public boolean setBaudRate(int baudRate) {
+        long factor;
+        long divisor;
+
+        if (baudRate == 921600) {
+            divisor = 7;
+            factor = 0xF300;
+        } else {
+            factor = BAUD_BASE_FACTOR / baudRate;
+            divisor = BAUD_BASE_DIVISOR_MAX;
+            while (factor > 0xFFF0 && divisor > 0) {
+                factor >>= 3;
+                divisor--;
+            }
+            if (factor > 0xFFF0) {
+                return false;
+            }
+            factor = 0x10000 - factor;
+        }
+        // Without this bit the chip waits for its buffer to be full before sending data
+        divisor |= 0x80;
+
+        return controlOut(WRITE_REGISTER, REG_PRESCALER, (int) ((factor & 0xFF00) | divisor))
+                && controlOut(WRITE_REGISTER, REG_DIVISOR, (int) (factor & 0xFF));
+    }
+
+    private boolean controlOut(int request, int value, int index) {
+        return connection.controlTransfer(REQUEST_TYPE_OUT, request, value, index, null, 0, TIMEOUT) >= 0;
+    }
+}
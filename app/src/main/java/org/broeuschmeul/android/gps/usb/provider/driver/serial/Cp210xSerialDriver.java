@@ -0,0 +1,67 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Driver of Silicon Labs CP210x bridges.
+ */
+public class Cp210xSerialDriver extends SerialDriver {
+    private static final int REQUEST_TYPE_OUT = 0x41;
+    private static final int REQUEST_TYPE_IN = 0xC1;
+
+    private static final int IFC_ENABLE = 0x00;
+    private static final int SET_LINE_CTL = 0x03;
+    private static final int SET_MHS = 0x07;
+    private static final int GET_BAUDRATE = 0x1D;
+    private static final int SET_BAUDRATE = 0x1E;
+
+    private static final int UART_ENABLE = 0x0001;
+    /**
+     * 8 data bits, no parity, 1 stop bit
+     */
+    private static final int LINE_8N1 = 0x0800;
+    /**
+     * DTR and RTS set, with their write masks
+     */
+    private static final int MHS_DTR_RTS = 0x0303;
+
+    public Cp210xSerialDriver(UsbDeviceConnection connection, UsbInterface intf) {
+        super(connection, intf);
+    }
+
+    @Override
+    public String getName() {
+        return "cp210x";
+    }
+
+    @Override
+    public boolean open() {
+        return controlOut(IFC_ENABLE, UART_ENABLE)
+                && controlOut(SET_LINE_CTL, LINE_8N1)
+                && controlOut(SET_MHS, MHS_DTR_RTS);
+    }
+
+    @Override
+    public boolean setBaudRate(int baudRate) {
+        byte[] data = new byte[4];
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(0, baudRate);
+        return connection.controlTransfer(REQUEST_TYPE_OUT, SET_BAUDRATE, 0, getInterfaceIndex(), data, data.length, TIMEOUT) >= 0;
+    }
+
+    @Override
+    public int getBaudRate() {
+        byte[] data = new byte[4];
+        if (connection.controlTransfer(REQUEST_TYPE_IN, GET_BAUDRATE, 0, getInterfaceIndex(), data, data.length, TIMEOUT) < 4) {
+            return -1;
+        }
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    private boolean controlOut(int request, int value) {
+        return connection.controlTransfer(REQUEST_TYPE_OUT, request, value, getInterfaceIndex(), null, 0, TIMEOUT) >= 0;
+    }
+}
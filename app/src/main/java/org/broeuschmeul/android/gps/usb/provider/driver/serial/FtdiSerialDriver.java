@@ -0,0 +1,116 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * Driver of FTDI bridges (FT232R, FT232H, FT2232, FT4232...).
+ * <p>
+ * FTDI chips start every packet they send with 2 modem status bytes, which are removed from the data.
+ */
+public class FtdiSerialDriver extends SerialDriver {
+    private static final int REQUEST_TYPE_OUT = 0x40;
+
+    private static final int SIO_RESET = 0;
+    private static final int SIO_SET_FLOW_CTRL = 2;
+    private static final int SIO_SET_BAUD_RATE = 3;
+    private static final int SIO_SET_DATA = 4;
+
+    private static final int SIO_RESET_SIO = 0;
+    /**
+     * 8 data bits, no parity, 1 stop bit
+     */
+    private static final int DATA_8N1 = 0x0008;
+
+    private static final int STATUS_LENGTH = 2;
+    private static final int BAUD_BASE = 48000000;
+    private static final int[] FRAC_CODE = {0, 3, 2, 4, 1, 5, 6, 7};
+
+    private final boolean multiPort;
+    private final int packetSize;
+
+    /**
+     * @param multiPort true if the chip has more than one port (FT2232, FT4232)
+     */
+    public FtdiSerialDriver(UsbDeviceConnection connection, UsbInterface intf, boolean multiPort) {
+        super(connection, intf);
+        this.multiPort = multiPort;
+        this.packetSize = findInPacketSize(intf);
+    }
+
+    @Override
+    public String getName() {
+        return "ftdi";
+    }
+
+    @Override
+    public boolean open() {
+        return connection.controlTransfer(REQUEST_TYPE_OUT, SIO_RESET, SIO_RESET_SIO, getPort(), null, 0, TIMEOUT) >= 0
+                && connection.controlTransfer(REQUEST_TYPE_OUT, SIO_SET_FLOW_CTRL, 0, getPort(), null, 0, TIMEOUT) >= 0
+                && connection.controlTransfer(REQUEST_TYPE_OUT, SIO_SET_DATA, DATA_8N1, getPort(), null, 0, TIMEOUT) >= 0;
+    }
+
+    @Override
+    public boolean setBaudRate(int baudRate) {
+        int divisor = getDivisor(baudRate);
+        int value = divisor & 0xFFFF;
+        int index = divisor >> 16;
+        if (multiPort) {
+            index = (index << 8) | getPort();
+        }
+        return connection.controlTransfer(REQUEST_TYPE_OUT, SIO_SET_BAUD_RATE, value, index, null, 0, TIMEOUT) >= 0;
+    }
+
+    @Override
+    public int filterReceivedData(byte[] data, int length) {
+        int out = 0;
+        for (int packet = 0; packet < length; packet += packetSize) {
+            int count = Math.min(packetSize, length - packet) - STATUS_LENGTH;
+            if (count > 0) {
+                System.arraycopy(data, packet + STATUS_LENGTH, data, out, count);
+                out += count;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Encodes a baud rate the way the FT232BM and later chips expect it: a 14 bits integer divisor of 3 MHz
+     * and a 3 bits fractional part, given in eighths.
+     *
+     * @return the divisor, to be split between the value and index of the request
+     */
+    static int getDivisor(int baudRate) {
+        int divisor3 = (BAUD_BASE / 2 + baudRate / 2) / baudRate;
+        int divisor = (divisor3 >> 3) | (FRAC_CODE[divisor3 & 0x07] << 14);
+
+        // Special cases for the highest rates
+        if (divisor == 1) {
+            // 3 Mbaud
+            divisor = 0;
+        } else if (divisor == 0x4001) {
+            // 2 Mbaud
+            divisor = 1;
+        }
+        return divisor;
+    }
+
+    private int getPort() {
+        return getInterfaceIndex() + 1;
+    }
+
+    private static int findInPacketSize(UsbInterface intf) {
+        if (intf != null) {
+            for (int i = 0; i < intf.getEndpointCount(); i++) {
+                UsbEndpoint endpoint = intf.getEndpoint(i);
+                if (endpoint.getDirection() == UsbConstants.USB_DIR_IN
+                        && endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                    return endpoint.getMaxPacketSize();
+                }
+            }
+        }
+        return 64;
+    }
+}
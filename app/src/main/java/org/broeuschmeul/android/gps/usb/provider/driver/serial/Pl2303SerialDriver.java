@@ -0,0 +1,63 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * Driver of Prolific PL2303 bridges.
+ * <p>
+ * Once the vendor specific initialization is done, the line is set with the same requests as CDC ACM.
+ * The HXN / G chips don't take the vendor requests of the older ones (HX, TA...) and go straight to CDC ACM.
+ */
+public class Pl2303SerialDriver extends CdcAcmSerialDriver {
+    private static final int VENDOR_WRITE_REQUEST_TYPE = 0x40;
+    private static final int VENDOR_READ_REQUEST_TYPE = 0xC0;
+    private static final int VENDOR_REQUEST = 0x01;
+
+    private final boolean hxn;
+
+    /**
+     * @param hxn true if the chip is a PL2303 HXN / G, which has its own product ids
+     */
+    public Pl2303SerialDriver(UsbDeviceConnection connection, UsbInterface intf, boolean hxn) {
+        super(connection, intf);
+        this.hxn = hxn;
+    }
+
+    @Override
+    public String getName() {
+        return "pl2303";
+    }
+
+    @Override
+    public boolean open() {
+        if (hxn) {
+            return super.open();
+        }
+
+        byte[] buffer = new byte[1];
+
+        // Initialization sequence of the Prolific driver
+        vendorRead(0x8484, buffer);
+        vendorWrite(0x0404, 0);
+        vendorRead(0x8484, buffer);
+        vendorRead(0x8383, buffer);
+        vendorRead(0x8484, buffer);
+        vendorWrite(0x0404, 1);
+        vendorRead(0x8484, buffer);
+        vendorRead(0x8383, buffer);
+        boolean initialized = vendorWrite(0, 1)
+                && vendorWrite(1, 0)
+                && vendorWrite(2, 0x44);
+
+        return initialized && super.open();
+    }
+
+    private boolean vendorRead(int value, byte[] buffer) {
+        return connection.controlTransfer(VENDOR_READ_REQUEST_TYPE, VENDOR_REQUEST, value, 0, buffer, buffer.length, TIMEOUT) >= 0;
+    }
+
+    private boolean vendorWrite(int value, int index) {
+        return connection.controlTransfer(VENDOR_WRITE_REQUEST_TYPE, VENDOR_REQUEST, value, index, null, 0, TIMEOUT) >= 0;
+    }
+}
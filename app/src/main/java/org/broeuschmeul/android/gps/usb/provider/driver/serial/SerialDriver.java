@@ -0,0 +1,67 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * Programs the USB to serial bridge the GPS is connected through.
+ * <p>
+ * Each bridge chip family has its own control requests to set the line up (baud rate, 8N1),
+ * and some of them add data of their own in the read stream, which the driver removes.
+ * Use {@link SerialDrivers#create} to get the driver of a device.
+ */
+public abstract class SerialDriver {
+    /**
+     * Timeout of the control transfers, in ms.
+     */
+    protected static final int TIMEOUT = 100;
+
+    protected final UsbDeviceConnection connection;
+    protected final UsbInterface intf;
+
+    protected SerialDriver(UsbDeviceConnection connection, UsbInterface intf) {
+        this.connection = connection;
+        this.intf = intf;
+    }
+
+    /**
+     * @return the name of the bridge chip family, for logs and for the device profiles
+     */
+    public abstract String getName();
+
+    /**
+     * Initializes the bridge, once its interface has been claimed.
+     *
+     * @return true if the bridge accepted the initialization
+     */
+    public abstract boolean open();
+
+    /**
+     * Sets the baud rate, with 8 data bits, no parity and 1 stop bit.
+     *
+     * @return true if the bridge accepted the baud rate
+     */
+    public abstract boolean setBaudRate(int baudRate);
+
+    /**
+     * @return the baud rate currently set in the bridge, or -1 if it can't be read
+     */
+    public int getBaudRate() {
+        return -1;
+    }
+
+    /**
+     * Removes from received data whatever the bridge adds to the serial data, in place.
+     *
+     * @param data   the received data
+     * @param length the number of bytes received
+     * @return the number of bytes of serial data left at the start of data
+     */
+    public int filterReceivedData(byte[] data, int length) {
+        return length;
+    }
+
+    protected int getInterfaceIndex() {
+        return intf != null ? intf.getId() : 0;
+    }
+}
@@ -0,0 +1,78 @@
+package org.broeuschmeul.android.gps.usb.provider.driver.serial;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * Chooses the {@link SerialDriver} of a device from its vendor and product ids.
+ * Devices that are not known bridges are driven as CDC ACM devices.
+ */
+public final class SerialDrivers {
+    public static final int VENDOR_FTDI = 0x0403;
+    public static final int VENDOR_SILABS = 0x10C4;
+    public static final int VENDOR_PROLIFIC = 0x067B;
+    public static final int VENDOR_WCH = 0x1A86;
+
+    private static final int[] FTDI_PRODUCTS = {0x6001, 0x6010, 0x6011, 0x6014, 0x6015};
+    private static final int[] CP210X_PRODUCTS = {0xEA60, 0xEA61, 0xEA63, 0xEA70, 0xEA71, 0xEA80};
+    private static final int[] PL2303_PRODUCTS = {0x2303, 0x23A3, 0x23B3, 0x23C3, 0x23D3, 0x23E3, 0x23F3};
+    // Every other PL2303 product id is a HXN / G chip
+    private static final int PL2303_LEGACY_PRODUCT = 0x2303;
+    private static final int[] CH34X_PRODUCTS = {0x5523, 0x7522, 0x7523};
+
+    private SerialDrivers() {
+    }
+
+    /**
+     * @param device     the GPS
+     * @param connection an open connection to the device
+     * @param intf       the interface holding the data endpoints
+     * @return the driver for the bridge chip of the device
+     */
+    public static SerialDriver create(UsbDevice device, UsbDeviceConnection connection, UsbInterface intf) {
+        int vendorId = device.getVendorId();
+        int productId = device.getProductId();
+
+        if (vendorId == VENDOR_FTDI && contains(FTDI_PRODUCTS, productId)) {
+            return new FtdiSerialDriver(connection, intf, device.getInterfaceCount() > 1);
+        } else if (vendorId == VENDOR_SILABS && contains(CP210X_PRODUCTS, productId)) {
+            return new Cp210xSerialDriver(connection, intf);
+        } else if (vendorId == VENDOR_PROLIFIC && contains(PL2303_PRODUCTS, productId)) {
+            return new Pl2303SerialDriver(connection, intf, productId != PL2303_LEGACY_PRODUCT);
+        } else if (vendorId == VENDOR_WCH && contains(CH34X_PRODUCTS, productId)) {
+            return new Ch34xSerialDriver(connection, intf);
+        }
+        return new CdcAcmSerialDriver(connection, intf);
+    }
+
+    /**
+     * @return the driver with the given name, as returned by {@link SerialDriver#getName()},
+     * or null if there is no such driver
+     */
+    public static SerialDriver create(String name, UsbDevice device, UsbDeviceConnection connection, UsbInterface intf) {
+        switch (name) {
+            case "cdc":
+                return new CdcAcmSerialDriver(connection, intf);
+            case "ftdi":
+                return new FtdiSerialDriver(connection, intf, device.getInterfaceCount() > 1);
+            case "cp210x":
+                return new Cp210xSerialDriver(connection, intf);
+            case "pl2303":
+                return new Pl2303SerialDriver(connection, intf, device.getProductId() != PL2303_LEGACY_PRODUCT);
+            case "ch34x":
+                return new Ch34xSerialDriver(connection, intf);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -4,9 +4,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Bundle;
-import android.text.TextUtils;
 import android.view.MenuItem;
-import android.view.View;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
@@ -45,6 +43,7 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
     private TextView logText;
     private TextView timeText;
     private ScrollView logTextScroller;
+    private NmeaLogRenderer logRenderer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -94,6 +93,7 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
 
         logText = (TextView) findViewById(R.id.log_box);
         logTextScroller = (ScrollView) findViewById(R.id.log_box_scroller);
+        logRenderer = new NmeaLogRenderer(logText, logTextScroller, application.getLogRing());
     }
 /*
 
@@ -158,28 +158,12 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
         elevationText.setText(getString(R.string.elevation_placeholder, elevation));
         speedText.setText(getString(R.string.speed_placeholder, speed));
         timeText.setText(getString(R.string.gps_time_placeholder, gpsTime, systemTime));
-        updateLog();
-    }
-
-    public void updateLog() {
-
-        boolean atBottom = (
-                logText.getBottom() - (
-                        logTextScroller.getHeight() +
-                                logTextScroller.getScrollY()
-                )
-        ) == 0;
-
-        logText.setText(TextUtils.join("\n", application.getLogLines()));
-
-        if (atBottom) {
-            logText.post(() -> logTextScroller.fullScroll(View.FOCUS_DOWN));
-        }
     }
 
     @Override
     public void onResume() {
         updateData();
+        logRenderer.start();
         sharedPreferences.registerOnSharedPreferenceChangeListener(this);
         ((USBGpsApplication) getApplication()).registerServiceDataListener(this);
         super.onResume();
@@ -187,6 +171,7 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
 
     @Override
     public void onPause() {
+        logRenderer.stop();
         sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
         ((USBGpsApplication) getApplication()).unregisterServiceDataListener(this);
         super.onPause();
@@ -211,8 +196,9 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
     }
 
     @Override
-    public void onNewSentence(String sentence) {
-        updateLog();
+    public void onNewSentences(int count) {
+        // Already called once per frame
+        logRenderer.update();
     }
 
     @Override
@@ -0,0 +1,135 @@
+package org.broeuschmeul.android.gps.usb.provider.ui;
+
+import android.text.Editable;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import org.broeuschmeul.android.gps.usb.provider.util.SentenceRing;
+
+/**
+ * Shows the last sentences of a {@link SentenceRing} in a TextView, updating it incrementally.
+ * <p>
+ * New sentences are appended to the editable text of the view and the oldest lines are cut from its start,
+ * so the text is never rebuilt. However many sentences come in, the view is updated at most once per
+ * display frame, and not at all while the renderer is stopped.
+ */
+public class NmeaLogRenderer implements Choreographer.FrameCallback {
+    private final TextView logText;
+    private final ScrollView logTextScroller;
+    private final SentenceRing ring;
+    private final int maxLines;
+
+    // Length of each line shown, including its line feed, to cut them from the start of the text
+    private final int[] lineLengths;
+    private int firstLine = 0;
+    private int lineCount = 0;
+
+    private long nextSequence = 0;
+    private boolean started = false;
+    private boolean frameScheduled = false;
+    private Editable text;
+
+    private final Runnable scrollToBottom = new Runnable() {
+        @Override
+        public void run() {
+            logTextScroller.fullScroll(View.FOCUS_DOWN);
+        }
+    };
+
+    private final SentenceRing.Reader appender = new SentenceRing.Reader() {
+        @Override
+        public void onSentence(long sequence, String sentence) {
+            appendLine(sentence);
+        }
+    };
+
+    public NmeaLogRenderer(TextView logText, ScrollView logTextScroller, SentenceRing ring) {
+        this.logText = logText;
+        this.logTextScroller = logTextScroller;
+        this.ring = ring;
+        this.maxLines = ring.getCapacity();
+        this.lineLengths = new int[maxLines];
+    }
+
+    /**
+     * Shows the sentences already in the ring and starts following the new ones.
+     */
+    public void start() {
+        started = true;
+        if (text == null) {
+            logText.setText("", TextView.BufferType.EDITABLE);
+            text = logText.getEditableText();
+        }
+        requestUpdate();
+    }
+
+    /**
+     * Stops updating the view, for instance when it is not visible anymore.
+     */
+    public void stop() {
+        started = false;
+        if (frameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            frameScheduled = false;
+        }
+    }
+
+    /**
+     * Asks for the view to be updated on the next frame. Must be called from the main thread.
+     */
+    public void requestUpdate() {
+        if (started && !frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        update();
+    }
+
+    /**
+     * Updates the view now. Must be called from the main thread.
+     */
+    public void update() {
+        if (!started || ring.getSequence() == nextSequence) {
+            return;
+        }
+
+        boolean atBottom = (
+                logText.getBottom() - (
+                        logTextScroller.getHeight() +
+                                logTextScroller.getScrollY()
+                )
+        ) <= 0;
+
+        nextSequence = ring.read(nextSequence, appender);
+
+        if (atBottom) {
+            // Once the new lines are laid out
+            logText.post(scrollToBottom);
+        }
+    }
+
+    private void appendLine(String sentence) {
+        if (lineCount == maxLines) {
+            text.delete(0, lineLengths[firstLine]);
+            firstLine = (firstLine + 1) % maxLines;
+            lineCount--;
+        }
+
+        int lastLine = (firstLine + lineCount) % maxLines;
+        if (lineCount > 0) {
+            // The line feed goes before the new line, so the text never ends with an empty line
+            text.append('\n');
+            lineLengths[(lastLine + maxLines - 1) % maxLines]++;
+        }
+        text.append(sentence);
+        lineLengths[lastLine] = sentence.length();
+        lineCount++;
+    }
+}
@@ -0,0 +1,87 @@
+package org.broeuschmeul.android.gps.usb.provider.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size ring of the last received sentences, written by a single thread and read by any thread
+ * without locking.
+ * <p>
+ * Every sentence gets a sequence number, so a reader can ask for the sentences it hasn't seen yet
+ * with {@link #read(long, Reader)} instead of copying the whole ring each time.
+ * Each slot is stamped with the sequence number of its sentence, which lets a reader detect that a slot
+ * was overwritten while it was reading it.
+ */
+public class SentenceRing {
+    private static final long EMPTY = -1;
+
+    private final int capacity;
+    private final AtomicReferenceArray<String> sentences;
+    private final AtomicLongArray stamps;
+    private volatile long sequence = 0;
+
+    /**
+     * Receives the sentences read from the ring.
+     */
+    public interface Reader {
+        void onSentence(long sequence, String sentence);
+    }
+
+    public SentenceRing(int capacity) {
+        this.capacity = capacity;
+        sentences = new AtomicReferenceArray<>(capacity);
+        stamps = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            stamps.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Adds a sentence, overwriting the oldest one when the ring is full.
+     * Must always be called from the same thread.
+     */
+    public void add(String sentence) {
+        long seq = sequence;
+        int slot = (int) (seq % capacity);
+
+        stamps.set(slot, EMPTY);
+        sentences.set(slot, sentence);
+        stamps.set(slot, seq);
+        sequence = seq + 1;
+    }
+
+    /**
+     * @return the sequence number the next sentence will get, i.e. the number of sentences ever added
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Reads, oldest first, the sentences still in the ring whose sequence number is since or later.
+     *
+     * @param since  sequence number of the first sentence wanted, as returned by the previous read
+     * @param reader receives the sentences
+     * @return the sequence number to give to the next read
+     */
+    public long read(long since, Reader reader) {
+        long end = sequence;
+        long seq = Math.max(since, end - capacity);
+
+        for (; seq < end; seq++) {
+            int slot = (int) (seq % capacity);
+            long stamp = stamps.get(slot);
+            String sentence = sentences.get(slot);
+
+            // Skips the slot if the writer has lapped us and is overwriting it
+            if (stamp == seq && stamps.get(slot) == seq) {
+                reader.onSentence(seq, sentence);
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,262 @@
+package org.broeuschmeul.android.gps.nmea.bench;
+
+import org.broeuschmeul.android.gps.nmea.transport.RawCapture;
+import org.broeuschmeul.android.gps.nmea.util.Ubx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Generates realistic NMEA streams: a moving receiver, a time that advances every epoch and valid checksums.
+ * <p>
+ * A corpus is either a single sentence type, or a mix as sent by a real receiver:
+ * <ul>
+ * <li>ublox-1Hz: u-blox M8 default output, GPS + GLONASS, NMEA 4.0</li>
+ * <li>gnss-20Hz: four constellation receiver at 20 Hz, NMEA 4.10, GSV only once per second</li>
+ * <li>ublox-pvt: u-blox M8 sending only UBX NAV-PVT, the same fixes as ublox-1Hz</li>
+ * </ul>
+ */
+final class NmeaCorpus {
+    static final String UBLOX_1HZ = "ublox-1Hz";
+    static final String GNSS_20HZ = "gnss-20Hz";
+    static final String UBLOX_PVT = "ublox-pvt";
+
+    private final List<byte[]> sentences = new ArrayList<>();
+    private int timeOfDay = 12 * 3600 * 1000;
+    private double latitude = 48.1173;
+    private double longitude = 11.5167;
+    private int epoch = 0;
+
+    private NmeaCorpus() {
+    }
+
+    /**
+     * @param type   a sentence type or one of the mixes
+     * @param epochs number of epochs to generate
+     */
+    static List<byte[]> generate(String type, int epochs) {
+        NmeaCorpus corpus = new NmeaCorpus();
+        int period = GNSS_20HZ.equals(type) ? 50 : 1000;
+        for (int i = 0; i < epochs; i++) {
+            corpus.addEpoch(type);
+            corpus.advance(period);
+        }
+        return corpus.sentences;
+    }
+
+    /**
+     * Generates a raw capture of the corpus, as a USB bridge would deliver it: each epoch starts on its period,
+     * and is cut in transfers of the given size, received once their bytes were sent at the given baud rate.
+     *
+     * @return the capture, see {@link RawCapture}
+     */
+    static byte[] capture(String type, int epochs, int transferSize, int baudRate) throws IOException {
+        NmeaCorpus corpus = new NmeaCorpus();
+        int period = GNSS_20HZ.equals(type) ? 50 : 1000;
+        long nanosPerByte = 10 * 1000000000L / baudRate;
+        long receiveTime = 0;
+
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(capture);
+        RawCapture.writeHeader(out, 0, System.currentTimeMillis(), 0);
+        for (int i = 0; i < epochs; i++) {
+            corpus.sentences.clear();
+            corpus.addEpoch(type);
+            byte[] epoch = stream(corpus.sentences);
+            long epochStart = (long) i * period * 1000000L;
+
+            for (int offset = 0; offset < epoch.length; offset += transferSize) {
+                int length = Math.min(transferSize, epoch.length - offset);
+                // An epoch too long for its period delays the next one
+                receiveTime = Math.max(receiveTime, epochStart + (offset + length) * nanosPerByte);
+                RawCapture.writeRecord(out, epoch, offset, length, receiveTime);
+            }
+            corpus.advance(period);
+        }
+        return capture.toByteArray();
+    }
+
+    /**
+     * @return the sentences one after the other, as read from the GPS
+     */
+    static byte[] stream(List<byte[]> sentences) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] sentence : sentences) {
+            stream.write(sentence, 0, sentence.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private void advance(int millis) {
+        timeOfDay = (timeOfDay + millis) % (24 * 3600 * 1000);
+        latitude += 0.00001 * millis / 1000;
+        longitude += 0.00002 * millis / 1000;
+        epoch++;
+    }
+
+    private void addEpoch(String type) {
+        switch (type) {
+            case UBLOX_1HZ:
+                add(rmc("GN"));
+                add(vtg("GN"));
+                add(gga("GN"));
+                add(gsa("GN", 0, 5, 12, 15, 18, 24, 25, 29));
+                add(gsa("GN", 0, 65, 66, 72, 81, 82));
+                addGsv("GP", 1, 11);
+                addGsv("GL", 65, 7);
+                add(gll("GN"));
+                break;
+            case GNSS_20HZ:
+                add(rmc("GN"));
+                add(gga("GN"));
+                add(gsa("GN", 1, 5, 12, 15, 18, 24, 25, 29));
+                add(gsa("GN", 2, 65, 66, 72, 81, 82));
+                add(gsa("GN", 3, 2, 7, 8, 26, 30));
+                add(gsa("GN", 4, 19, 20, 29, 35, 44, 46));
+                if (epoch % 20 == 0) {
+                    addGsv("GP", 1, 11);
+                    addGsv("GL", 65, 7);
+                    addGsv("GA", 2, 8);
+                    addGsv("GB", 19, 10);
+                }
+                break;
+            case UBLOX_PVT:
+                sentences.add(navPvt());
+                break;
+            case "GGA":
+                add(gga("GP"));
+                break;
+            case "RMC":
+                add(rmc("GP"));
+                break;
+            case "GNS":
+                add(gns("GN"));
+                break;
+            case "GSA":
+                add(gsa("GP", 0, 5, 12, 15, 18, 24, 25, 29));
+                break;
+            case "GSV":
+                addGsv("GP", 1, 12);
+                break;
+            case "VTG":
+                add(vtg("GP"));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown corpus: " + type);
+        }
+    }
+
+    private void add(String content) {
+        int checksum = 0;
+        for (int i = 0; i < content.length(); i++) {
+            checksum ^= content.charAt(i);
+        }
+        String sentence = String.format(Locale.US, "$%s*%02X\r\n", content, checksum);
+        sentences.add(sentence.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return a UBX NAV-PVT frame of the current epoch, 3D fix, in the protocol 15 format
+     */
+    private byte[] navPvt() {
+        ByteBuffer frame = ByteBuffer.allocate(Ubx.HEADER_SIZE + 92 + Ubx.CHECKSUM_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        frame.put((byte) Ubx.SYNC_1).put((byte) Ubx.SYNC_2).put((byte) Ubx.CLASS_NAV).put((byte) Ubx.NAV_PVT)
+                .putShort((short) 92);
+
+        int seconds = timeOfDay / 1000;
+        frame.putInt(timeOfDay + 18000); // iTOW, GPS is ahead of UTC
+        frame.putShort((short) 1994).put((byte) 3).put((byte) 23)
+                .put((byte) (seconds / 3600)).put((byte) (seconds / 60 % 60)).put((byte) (seconds % 60))
+                .put((byte) 0x07); // valid date, time and fully resolved
+        frame.putInt(25); // tAcc
+        frame.putInt(timeOfDay % 1000 * 1000000); // nano
+        frame.put((byte) 3).put((byte) 0x01).put((byte) 0).put((byte) 12); // 3D fix, gnssFixOK, 12 satellites
+        frame.putInt((int) Math.round(longitude * 1e7)).putInt((int) Math.round(latitude * 1e7));
+        frame.putInt(592300).putInt(545400); // height, hMSL
+        frame.putInt(1580).putInt(2240); // hAcc, vAcc
+        frame.putInt(-620).putInt(6327).putInt(12); // velN, velE, velD
+        frame.putInt(6351).putInt(8440000); // gSpeed, headMot
+        frame.putInt(310).putInt(2150000); // sAcc, headAcc
+        frame.putShort((short) 131).put((byte) 0); // pDOP, flags3
+        frame.position(frame.position() + 5).putInt(0).putShort((short) 0).putShort((short) 0); // headVeh, magDec
+
+        int ckA = 0;
+        int ckB = 0;
+        for (int i = 2; i < frame.position(); i++) {
+            ckA += frame.get(i) & 0xFF;
+            ckB += ckA;
+        }
+        frame.put((byte) ckA).put((byte) ckB);
+        return frame.array();
+    }
+
+    private String time() {
+        int seconds = timeOfDay / 1000;
+        return String.format(Locale.US, "%02d%02d%02d.%02d",
+                seconds / 3600, seconds / 60 % 60, seconds % 60, timeOfDay % 1000 / 10);
+    }
+
+    private String position() {
+        return String.format(Locale.US, "%02d%08.5f,N,%03d%08.5f,E",
+                (int) latitude, (latitude % 1) * 60, (int) longitude, (longitude % 1) * 60);
+    }
+
+    private String gga(String talker) {
+        return talker + "GGA," + time() + "," + position() + ",1,12,0.79,545.4,M,46.9,M,,";
+    }
+
+    private String gns(String talker) {
+        return talker + "GNS," + time() + "," + position() + ",AAAN,18,0.69,545.4,46.9,,,V";
+    }
+
+    private String rmc(String talker) {
+        return talker + "RMC," + time() + ",A," + position() + ",12.345,84.4,230394,,,A,V";
+    }
+
+    private String vtg(String talker) {
+        return talker + "VTG,84.4,T,,M,12.345,N,22.863,K,A";
+    }
+
+    private String gll(String talker) {
+        return talker + "GLL," + position() + "," + time() + ",A,A";
+    }
+
+    /**
+     * @param systemId NMEA 4.10 system id, or 0 for none
+     */
+    private String gsa(String talker, int systemId, int... prns) {
+        StringBuilder gsa = new StringBuilder(talker).append("GSA,A,3");
+        for (int i = 0; i < 12; i++) {
+            gsa.append(',');
+            if (i < prns.length) {
+                gsa.append(String.format(Locale.US, "%02d", prns[i]));
+            }
+        }
+        gsa.append(",1.31,0.79,1.05");
+        if (systemId > 0) {
+            gsa.append(',').append(systemId);
+        }
+        return gsa.toString();
+    }
+
+    private void addGsv(String talker, int firstPrn, int satellites) {
+        int parts = (satellites + 3) / 4;
+        for (int part = 1; part <= parts; part++) {
+            StringBuilder gsv = new StringBuilder(talker).append("GSV,")
+                    .append(parts).append(',').append(part).append(',')
+                    .append(String.format(Locale.US, "%02d", satellites));
+            for (int i = (part - 1) * 4; i < Math.min(part * 4, satellites); i++) {
+                gsv.append(String.format(Locale.US, ",%02d,%02d,%03d,%02d",
+                        firstPrn + i, (17 + i * 7) % 90, (83 + i * 37) % 360, 20 + (i * 5 + epoch) % 30));
+            }
+            add(gsv.toString());
+        }
+    }
+}
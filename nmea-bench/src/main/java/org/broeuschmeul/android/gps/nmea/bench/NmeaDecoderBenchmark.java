@@ -0,0 +1,96 @@
+package org.broeuschmeul.android.gps.nmea.bench;
+
+import org.broeuschmeul.android.gps.nmea.util.GpsFix;
+import org.broeuschmeul.android.gps.nmea.util.NmeaDecoder;
+import org.broeuschmeul.android.gps.nmea.util.SatelliteModel;
+import org.broeuschmeul.android.gps.nmea.util.SatelliteSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes one sentence per operation, going round a corpus of a few hundred epochs.
+ * For ublox-pvt, a sentence is a NAV-PVT frame, so a whole epoch.
+ * <p>
+ * Gives sentences/s and ns/sentence; with the gc profiler, gc.alloc.rate.norm is the number of bytes
+ * allocated per sentence, which should stay at 0.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NmeaDecoderBenchmark {
+    @Param({"GGA", "RMC", "GNS", "GSA", "GSV", "VTG", NmeaCorpus.UBLOX_1HZ, NmeaCorpus.GNSS_20HZ, NmeaCorpus.UBLOX_PVT})
+    public String corpus;
+
+    private byte[][] sentences;
+    private int next;
+    private NmeaDecoder decoder;
+
+    // Written by the listeners, so their work can't be optimized away
+    public int fixStatus;
+    public double latitude;
+    public int satellites;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<byte[]> list = NmeaCorpus.generate(corpus, 600);
+        sentences = list.toArray(new byte[0][]);
+        next = 0;
+
+        decoder = new NmeaDecoder(new NmeaDecoder.Listener() {
+            @Override
+            public void onFixStatus(boolean available, int timeOfDay) {
+                fixStatus = available ? timeOfDay : -timeOfDay;
+            }
+
+            @Override
+            public void onFix(GpsFix fix) {
+                latitude = fix.latitude;
+            }
+        });
+        decoder.setSatelliteListener(new SatelliteModel.SnapshotListener() {
+            @Override
+            public void onSatellites(SatelliteSnapshot snapshot) {
+                satellites = snapshot.count;
+            }
+        });
+    }
+
+    private boolean decodeNext() {
+        byte[] sentence = sentences[next];
+        if (++next == sentences.length) {
+            next = 0;
+        }
+        if (sentence[0] == '$') {
+            return decoder.decode(sentence, 0, sentence.length);
+        }
+        return decoder.decodeUbx(sentence, 0, sentence.length);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean sentencesPerSecond() {
+        return decodeNext();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean nanosPerSentence() {
+        return decodeNext();
+    }
+}
@@ -0,0 +1,93 @@
+package org.broeuschmeul.android.gps.nmea.bench;
+
+import org.broeuschmeul.android.gps.nmea.util.GpsFix;
+import org.broeuschmeul.android.gps.nmea.util.NmeaDecoder;
+import org.broeuschmeul.android.gps.nmea.util.NmeaFramer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames and decodes the raw stream as the USB transport delivers it, one transfer per operation,
+ * so the cost of finding the sentences in the bytes is included.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NmeaFramerBenchmark {
+    @Param({NmeaCorpus.UBLOX_1HZ, NmeaCorpus.GNSS_20HZ, NmeaCorpus.UBLOX_PVT})
+    public String corpus;
+
+    /**
+     * 64 bytes is a full speed bulk packet, 256 the default transfer of the provider.
+     */
+    @Param({"64", "256"})
+    public int transferSize;
+
+    private byte[] stream;
+    private int position;
+    private NmeaFramer framer;
+
+    // Written by the listeners, so their work can't be optimized away
+    public int fixStatus;
+    public double latitude;
+    public int validSentences;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stream = NmeaCorpus.stream(NmeaCorpus.generate(corpus, 600));
+        position = 0;
+
+        final NmeaDecoder decoder = new NmeaDecoder(new NmeaDecoder.Listener() {
+            @Override
+            public void onFixStatus(boolean available, int timeOfDay) {
+                fixStatus = available ? timeOfDay : -timeOfDay;
+            }
+
+            @Override
+            public void onFix(GpsFix fix) {
+                latitude = fix.latitude;
+            }
+        });
+        framer = new NmeaFramer(new NmeaFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                if (decoder.decode(buffer, offset, length)) {
+                    validSentences++;
+                }
+            }
+        });
+        framer.setUbxListener(new NmeaFramer.UbxFrameListener() {
+            @Override
+            public void onUbxFrame(byte[] buffer, int offset, int length) {
+                if (decoder.decodeUbx(buffer, offset, length)) {
+                    validSentences++;
+                }
+            }
+        });
+    }
+
+    @Benchmark
+    public void nanosPerTransfer() {
+        int length = Math.min(transferSize, stream.length - position);
+        framer.feed(stream, position, length);
+        position += length;
+        if (position == stream.length) {
+            position = 0;
+        }
+    }
+}
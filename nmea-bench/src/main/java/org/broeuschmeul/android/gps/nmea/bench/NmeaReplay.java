@@ -0,0 +1,183 @@
+package org.broeuschmeul.android.gps.nmea.bench;
+
+import org.broeuschmeul.android.gps.nmea.transport.ReplayTransport;
+import org.broeuschmeul.android.gps.nmea.transport.TransferBuffer;
+import org.broeuschmeul.android.gps.nmea.util.GpsFix;
+import org.broeuschmeul.android.gps.nmea.util.LatencyHistogram;
+import org.broeuschmeul.android.gps.nmea.util.NmeaDecoder;
+import org.broeuschmeul.android.gps.nmea.util.NmeaFramer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Replays a raw capture, or a generated corpus, through the framing and decoding of the provider, with the
+ * same reading loop as the USB GPS, and reports the throughput and the latency from reception to fix.
+ * <p>
+ * Run with: ./gradlew :nmea-bench:replay -PreplayArgs="&lt;capture file or corpus&gt; [options]"
+ * <pre>
+ * --speed N        N times faster than real time, 0 (the default) as fast as possible
+ * --epochs N       epochs generated for a corpus, 3600 by default
+ * --write FILE     writes the capture of the corpus to FILE, to replay it on a device
+ * --max-p99 US     fails if the 99th percentile of the latency is above US microseconds
+ * --min-rate N     fails if less than N sentences per second were decoded
+ * </pre>
+ * UBX frames count as sentences.
+ * The thresholds make it usable as a regression test: the exit code is 1 if one is not met.
+ */
+public final class NmeaReplay {
+    private static final int READ_TIMEOUT = 1000;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long receiveTime = 0;
+    private long sentences = 0;
+    private long invalidSentences = 0;
+    private long fixes = 0;
+
+    public static void main(String[] args) throws Exception {
+        String source = null;
+        float speed = ReplayTransport.AS_FAST_AS_POSSIBLE;
+        int epochs = 3600;
+        String write = null;
+        long maxP99 = -1;
+        double minRate = -1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--speed":
+                    speed = Float.parseFloat(args[++i]);
+                    break;
+                case "--epochs":
+                    epochs = Integer.parseInt(args[++i]);
+                    break;
+                case "--write":
+                    write = args[++i];
+                    break;
+                case "--max-p99":
+                    maxP99 = Long.parseLong(args[++i]);
+                    break;
+                case "--min-rate":
+                    minRate = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    source = args[i];
+            }
+        }
+        if (source == null) {
+            System.err.println("Usage: NmeaReplay <capture file or corpus> [--speed N] [--epochs N] [--write FILE]"
+                    + " [--max-p99 US] [--min-rate N]");
+            System.exit(2);
+        }
+
+        InputStream capture;
+        if (new File(source).isFile()) {
+            capture = new BufferedInputStream(new FileInputStream(source), 64 * 1024);
+        } else {
+            byte[] generated = NmeaCorpus.capture(source, epochs, 256, 460800);
+            if (write != null) {
+                try (OutputStream out = new FileOutputStream(write)) {
+                    out.write(generated);
+                }
+                System.out.println("Capture of " + source + " written to " + write);
+            }
+            capture = new ByteArrayInputStream(generated);
+        }
+
+        NmeaReplay replay = new NmeaReplay();
+        long elapsed;
+        long bytes;
+        try {
+            long start = System.nanoTime();
+            bytes = replay.run(capture, speed);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            capture.close();
+        }
+
+        double seconds = elapsed / 1e9;
+        double rate = replay.sentences / seconds;
+        System.out.printf(Locale.US, "%d bytes, %d sentences (%d invalid), %d fixes in %.3f s%n",
+                bytes, replay.sentences, replay.invalidSentences, replay.fixes, seconds);
+        System.out.printf(Locale.US, "%.0f sentences/s, %.2f MB/s%n", rate, bytes / seconds / 1e6);
+        System.out.println("Reception to fix latency: " + replay.latency);
+
+        boolean failed = false;
+        if (maxP99 >= 0 && replay.latency.getPercentileMicros(99) > maxP99) {
+            System.out.println("FAILED: latency p99 above " + maxP99 + "us");
+            failed = true;
+        }
+        if (minRate >= 0 && rate < minRate) {
+            System.out.println("FAILED: less than " + minRate + " sentences/s");
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return the number of bytes replayed
+     */
+    private long run(InputStream capture, float speed) throws IOException, InterruptedException {
+        final NmeaDecoder decoder = new NmeaDecoder(new NmeaDecoder.Listener() {
+            @Override
+            public void onFixStatus(boolean available, int timeOfDay) {
+            }
+
+            @Override
+            public void onFix(GpsFix fix) {
+                fixes++;
+                latency.record(System.nanoTime() - receiveTime);
+            }
+        });
+        NmeaFramer framer = new NmeaFramer(new NmeaFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                if (decoder.decode(buffer, offset, length)) {
+                    sentences++;
+                } else {
+                    invalidSentences++;
+                }
+            }
+        });
+        framer.setUbxListener(new NmeaFramer.UbxFrameListener() {
+            @Override
+            public void onUbxFrame(byte[] buffer, int offset, int length) {
+                if (decoder.decodeUbx(buffer, offset, length)) {
+                    sentences++;
+                } else {
+                    invalidSentences++;
+                }
+            }
+        });
+
+        ReplayTransport transport = new ReplayTransport(capture, speed, ReplayTransport.SYSTEM_CLOCK);
+        transport.start();
+        try {
+            while (!transport.isFinished()) {
+                long epochTimeout = decoder.checkPendingEpoch();
+                long timeout = epochTimeout >= 0 ? Math.min(epochTimeout, READ_TIMEOUT) : READ_TIMEOUT;
+
+                TransferBuffer buffer = transport.take(timeout);
+                if (buffer != null) {
+                    receiveTime = buffer.receiveTime;
+                    framer.feed(buffer.data, 0, buffer.length);
+                    transport.recycle(buffer);
+                }
+            }
+        } finally {
+            transport.close();
+            // The caller closes the capture once the replay stopped reading it
+            transport.awaitClosed(READ_TIMEOUT);
+        }
+        if (transport.getError() != null) {
+            throw transport.getError();
+        }
+        return transport.getReplayedBytes();
+    }
+}
@@ -0,0 +1,43 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+/**
+ * A source of raw data from the GPS.
+ * <p>
+ * The data comes in preallocated {@link TransferBuffer}s that must be given back with
+ * {@link #recycle(TransferBuffer)} once parsed. This interface doesn't depend on any Android class,
+ * so the reading loop can be driven by an in-memory transport.
+ */
+public interface GpsTransport {
+    /**
+     * Starts reading from the GPS.
+     */
+    void start();
+
+    /**
+     * Waits for the next chunk of data.
+     *
+     * @param timeout how long to wait, in ms
+     * @return the next filled buffer, or null if no data came in time
+     */
+    TransferBuffer take(long timeout) throws InterruptedException;
+
+    /**
+     * Gives a buffer returned by {@link #take(long)} back to the transport.
+     */
+    void recycle(TransferBuffer buffer);
+
+    /**
+     * Stops reading, without waiting. The underlying connection is left open, closing it is up to the caller,
+     * once {@link #awaitClosed(long)} returned true.
+     */
+    void close();
+
+    /**
+     * Waits for the transport to stop after {@link #close()}, as it may still be using the connection
+     * (e.g. a USB transport cancels its requests when it stops).
+     *
+     * @param timeout how long to wait at most, in ms, more than 0
+     * @return true if the transport stopped or was never started, false if it is still running
+     */
+    boolean awaitClosed(long timeout) throws InterruptedException;
+}
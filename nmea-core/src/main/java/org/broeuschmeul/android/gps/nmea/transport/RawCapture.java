@@ -0,0 +1,170 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The format of a raw capture: the chunks of data read from the GPS, as they were handed to the framer,
+ * each with the time it was received, so the stream can be replayed with its original timing.
+ * <p>
+ * A capture file is laid out as follows, big endian:
+ * <pre>
+ * header
+ *    0  int   MAGIC
+ *    4  int   VERSION
+ *    8  int   index of the file, when a capture is split in several files
+ *   12  int   reserved, 0
+ *   16  long  wall clock time of the start of the capture, in milliseconds
+ *   24  long  receive time of the start of the capture, on the clock of the records
+ * records
+ *    0  int   length of the chunk, 1 to {@link #MAX_RECORD_LENGTH}
+ *    4  long  receive time of the chunk, in nanoseconds, on a monotonic clock
+ *   12        the bytes of the chunk
+ * footer, once the file is complete
+ *    0  int   {@link #END_OF_RECORDS}
+ *    4  int   number of records
+ *    8  long  number of bytes in the records
+ *   16  long  receive time of the last record
+ *   24  long  number of chunks that couldn't be captured since the start of the capture
+ * </pre>
+ * A length of 0 or less ends the records, so a file can be preallocated with zeros.
+ * A record cut by the end of the file is ignored.
+ */
+public final class RawCapture {
+    public static final int MAGIC = 0x55475043; // "UGPC"
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int FOOTER_SIZE = 32;
+    public static final int END_OF_RECORDS = -1;
+    /**
+     * Largest chunk, twice the largest USB transfer of the provider (16 packets of 512 bytes).
+     */
+    public static final int MAX_RECORD_LENGTH = 16 * 1024;
+
+    private RawCapture() {
+    }
+
+    public static void writeHeader(DataOutput out, int fileIndex, long startTime, long startNanos)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fileIndex);
+        out.writeInt(0);
+        out.writeLong(startTime);
+        out.writeLong(startNanos);
+    }
+
+    public static void writeRecord(DataOutput out, byte[] data, int offset, int length, long receiveTime)
+            throws IOException {
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Invalid record length: " + length);
+        }
+        out.writeInt(length);
+        out.writeLong(receiveTime);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Reads the records of a capture, one after the other.
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private final int fileIndex;
+        private final long startTime;
+        private final long startNanos;
+        private boolean ended = false;
+        private boolean complete = false;
+        private long droppedChunks = 0;
+
+        /**
+         * Reads the header of the capture.
+         *
+         * @param in the capture, buffering it is up to the caller
+         * @throws IOException if it can't be read or is not a capture
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            int magic = this.in.readInt();
+            int version = this.in.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("Not a raw capture, or an unknown version: "
+                        + Integer.toHexString(magic) + " " + version);
+            }
+            fileIndex = this.in.readInt();
+            this.in.readInt();
+            startTime = this.in.readLong();
+            startNanos = this.in.readLong();
+        }
+
+        public int getFileIndex() {
+            return fileIndex;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * @return true if the end of the records was reached and the file has a footer
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return the number of chunks the capture lost, from the footer
+         */
+        public long getDroppedChunks() {
+            return droppedChunks;
+        }
+
+        /**
+         * Reads the next record into the given buffer, with its recorded receive time.
+         *
+         * @param buffer a buffer of at least {@link #MAX_RECORD_LENGTH} bytes
+         * @return false at the end of the capture
+         * @throws IOException if the capture can't be read or is corrupted
+         */
+        public boolean read(TransferBuffer buffer) throws IOException {
+            if (ended) {
+                return false;
+            }
+            try {
+                int length = in.readInt();
+                if (length <= 0) {
+                    ended = true;
+                    if (length == END_OF_RECORDS) {
+                        in.readInt();
+                        in.readLong();
+                        in.readLong();
+                        droppedChunks = in.readLong();
+                        complete = true;
+                    }
+                    return false;
+                }
+                if (length > buffer.data.length) {
+                    throw new IOException("Record too long: " + length);
+                }
+                long receiveTime = in.readLong();
+                in.readFully(buffer.data, 0, length);
+                buffer.length = length;
+                buffer.receiveTime = receiveTime;
+                return true;
+
+            } catch (EOFException e) {
+                // Capture cut while it was written
+                ended = true;
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Captures the chunks read from the GPS to {@link RawCapture} files, from the reading thread,
+ * without ever blocking it.
+ * <p>
+ * The capture is split in segments of a fixed size, each one a file mapped in memory: writing a chunk is
+ * a copy into the mapping, the kernel writing it to the file in the background. A chunk's length is written
+ * after its bytes, so a segment is readable up to its last complete chunk even if the application dies.
+ * <p>
+ * Everything that can wait on the storage is done by a background thread: the next segment is created
+ * and mapped while the current one is being filled, and a full segment gets its footer, is synced and
+ * truncated to what was written there. A chunk that comes while the next segment isn't ready yet is
+ * dropped and counted rather than waited for. Only the last segments are kept, the oldest files are
+ * deleted, across captures.
+ */
+public class RawCaptureWriter {
+    public static final String FILE_EXTENSION = ".ugpc";
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final String baseName;
+    private final ExecutorService background;
+
+    // Prepared by the background thread, taken by the reading thread
+    private final AtomicReference<Segment> nextSegment = new AtomicReference<>();
+    private final AtomicBoolean preparing = new AtomicBoolean(false);
+    private int nextIndex = 0;
+
+    // Only used by the reading thread
+    private Segment segment;
+    private boolean closed = false;
+
+    private volatile long droppedChunks = 0;
+    private volatile long capturedBytes = 0;
+    private volatile IOException error;
+
+    private static class Segment {
+        final File file;
+        final int index;
+        final MappedByteBuffer buffer;
+        int records = 0;
+        long bytes = 0;
+        long lastReceiveTime = 0;
+
+        Segment(File file, int index, MappedByteBuffer buffer) {
+            this.file = file;
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Creates the first segment, so must not be called from the reading thread once it is reading.
+     *
+     * @param dir         where the segments are written
+     * @param segmentSize size of a segment, in bytes
+     * @param maxSegments number of segment files kept in the directory, counting the one prepared in advance,
+     *                    at least 2
+     * @throws IOException if the first segment can't be created
+     */
+    public RawCaptureWriter(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < RawCapture.HEADER_SIZE + RawCapture.RECORD_HEADER_SIZE + RawCapture.MAX_RECORD_LENGTH
+                + RawCapture.FOOTER_SIZE) {
+            throw new IllegalArgumentException("Segment too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        // The one being written and the next one
+        this.maxSegments = Math.max(2, maxSegments);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.baseName = "capture-" + format.format(new Date());
+
+        background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RawCaptureWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        nextSegment.set(createSegment());
+    }
+
+    /**
+     * Appends a chunk read from the GPS. Must always be called from the same thread.
+     *
+     * @param receiveTime when the chunk was received, in nanoseconds, on a monotonic clock
+     */
+    public void write(byte[] data, int offset, int length, long receiveTime) {
+        if (closed || length <= 0) {
+            return;
+        }
+        if (length > RawCapture.MAX_RECORD_LENGTH) {
+            droppedChunks++;
+            return;
+        }
+        int recordSize = RawCapture.RECORD_HEADER_SIZE + length;
+        if (segment == null || segment.buffer.remaining() - RawCapture.FOOTER_SIZE < recordSize) {
+            if (!nextSegment(receiveTime)) {
+                droppedChunks++;
+                return;
+            }
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        int position = buffer.position();
+        buffer.putLong(position + 4, receiveTime);
+        buffer.position(position + RawCapture.RECORD_HEADER_SIZE);
+        buffer.put(data, offset, length);
+        // Last, a chunk cut by a crash is never taken as complete
+        buffer.putInt(position, length);
+
+        segment.records++;
+        segment.bytes += length;
+        segment.lastReceiveTime = receiveTime;
+        capturedBytes += length;
+    }
+
+    /**
+     * Finishes the current segment in the background and stops capturing.
+     * Must be called from the thread writing, it doesn't wait for the storage.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (segment != null) {
+            finish(segment);
+            segment = null;
+        }
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Never written to
+                Segment unused = nextSegment.getAndSet(null);
+                if (unused != null && !unused.file.delete()) {
+                    error = new IOException("Unable to delete " + unused.file);
+                }
+            }
+        });
+        background.shutdown();
+    }
+
+    public long getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    public long getCapturedBytes() {
+        return capturedBytes;
+    }
+
+    /**
+     * @return the last storage error, after which the capture stops, or null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Switches to the segment prepared in the background and starts preparing the next one.
+     *
+     * @return false if it isn't ready yet
+     */
+    private boolean nextSegment(long receiveTime) {
+        Segment next = nextSegment.getAndSet(null);
+        if (next == null) {
+            prepareNextSegment();
+            return false;
+        }
+        if (segment != null) {
+            finish(segment);
+        }
+        segment = next;
+
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(0, RawCapture.MAGIC);
+        buffer.putInt(4, RawCapture.VERSION);
+        buffer.putInt(8, segment.index);
+        buffer.putInt(12, 0);
+        buffer.putLong(16, System.currentTimeMillis());
+        buffer.putLong(24, receiveTime);
+        buffer.position(RawCapture.HEADER_SIZE);
+
+        prepareNextSegment();
+        return true;
+    }
+
+    private void prepareNextSegment() {
+        if (error != null || !preparing.compareAndSet(false, true)) {
+            return;
+        }
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    nextSegment.set(createSegment());
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    preparing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates and maps the next segment, deleting the oldest ones. Called from the background thread,
+     * or from the constructor before it is started.
+     */
+    private Segment createSegment() throws IOException {
+        deleteOldSegments();
+
+        int index = nextIndex++;
+        File file = new File(dir, String.format(Locale.US, "%s-%04d%s", baseName, index, FILE_EXTENSION));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Sparse, only what is written takes space. The mapping outlives the file descriptor.
+            raf.setLength(segmentSize);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(file, index, buffer);
+        }
+    }
+
+    private void deleteOldSegments() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_EXTENSION)) {
+                files[count++] = file;
+            }
+        }
+        // Names start with the UTC start time of their capture, then the index, so they sort by age.
+        // One is kept free for the segment being created.
+        Arrays.sort(files, 0, count);
+        for (int i = 0; i <= count - maxSegments; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Writes the footer of a full segment, syncs it and truncates it, in the background.
+     * Called from the reading thread, the segment is not written to anymore.
+     */
+    private void finish(final Segment full) {
+        final long dropped = droppedChunks;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                MappedByteBuffer buffer = full.buffer;
+                int end = buffer.position();
+                buffer.putInt(end, RawCapture.END_OF_RECORDS);
+                buffer.putInt(end + 4, full.records);
+                buffer.putLong(end + 8, full.bytes);
+                buffer.putLong(end + 16, full.lastReceiveTime);
+                buffer.putLong(end + 24, dropped);
+                buffer.force();
+
+                try (RandomAccessFile raf = new RandomAccessFile(full.file, "rw")) {
+                    // Not accessed through the mapping anymore, so it can be cut
+                    raf.setLength(end + RawCapture.FOOTER_SIZE);
+                    raf.getFD().sync();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        });
+    }
+}
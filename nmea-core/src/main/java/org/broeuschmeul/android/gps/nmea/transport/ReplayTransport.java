@@ -0,0 +1,152 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a {@link RawCapture} in its own thread, chunk by chunk, as if it was read from the GPS.
+ * <p>
+ * The chunks are released with their original spacing, divided by the speed: 1 replays in real time,
+ * 10 ten times faster, and {@link #AS_FAST_AS_POSSIBLE} as fast as the parsing thread takes them.
+ * A chunk is stamped with the time it is released, so the latency measured downstream is the one of
+ * the pipeline, not the one of the capture. Like the USB transports, the replay doesn't allocate while
+ * running: it has a small pool of buffers and waits for the parsing thread when they are all in use.
+ */
+public class ReplayTransport extends Thread implements GpsTransport {
+    public static final float REAL_TIME = 1f;
+    public static final float AS_FAST_AS_POSSIBLE = 0f;
+
+    /**
+     * Number of buffers, one being parsed while the others are being filled.
+     */
+    private static final int BUFFER_COUNT = 4;
+
+    /**
+     * Monotonic clock the chunks are stamped with.
+     */
+    public interface Clock {
+        long nanos();
+    }
+
+    /**
+     * {@link System#nanoTime()}, for a replay off Android.
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+    };
+
+    private final InputStream capture;
+    private final float speed;
+    private final Clock clock;
+    private final BlockingQueue<TransferBuffer> freeBuffers;
+    private final BlockingQueue<TransferBuffer> filledBuffers;
+    private volatile boolean closed = false;
+    private volatile boolean ended = false;
+    private volatile IOException error;
+    private volatile long replayedBytes = 0;
+
+    /**
+     * @param capture the capture to replay, closing it is up to the caller
+     * @param speed   how many times faster than real time, or {@link #AS_FAST_AS_POSSIBLE}
+     * @param clock   the clock of the parsing thread
+     */
+    public ReplayTransport(InputStream capture, float speed, Clock clock) {
+        super("ReplayTransport");
+        this.capture = capture;
+        this.speed = speed;
+        this.clock = clock;
+
+        freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        filledBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            freeBuffers.add(new TransferBuffer(RawCapture.MAX_RECORD_LENGTH));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            RawCapture.Reader reader = new RawCapture.Reader(capture);
+            long firstRecordTime = 0;
+            long replayStart = 0;
+            boolean first = true;
+
+            while (!closed) {
+                TransferBuffer buffer = freeBuffers.take();
+                if (!reader.read(buffer)) {
+                    freeBuffers.put(buffer);
+                    break;
+                }
+
+                if (first) {
+                    first = false;
+                    firstRecordTime = buffer.receiveTime;
+                    replayStart = clock.nanos();
+                } else if (speed > 0) {
+                    long due = replayStart + (long) ((buffer.receiveTime - firstRecordTime) / speed);
+                    long wait = due - clock.nanos();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+
+                replayedBytes += buffer.length;
+                buffer.receiveTime = clock.nanos();
+                filledBuffers.put(buffer);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // closing
+        } finally {
+            ended = true;
+        }
+    }
+
+    @Override
+    public TransferBuffer take(long timeout) throws InterruptedException {
+        return filledBuffers.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recycle(TransferBuffer buffer) {
+        buffer.length = 0;
+        freeBuffers.offer(buffer);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        interrupt();
+    }
+
+    @Override
+    public boolean awaitClosed(long timeout) throws InterruptedException {
+        join(timeout);
+        return !isAlive();
+    }
+
+    /**
+     * @return true once the whole capture was replayed and taken
+     */
+    public boolean isFinished() {
+        return ended && filledBuffers.isEmpty();
+    }
+
+    /**
+     * @return why the replay stopped before the end of the capture, or null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    public long getReplayedBytes() {
+        return replayedBytes;
+    }
+}
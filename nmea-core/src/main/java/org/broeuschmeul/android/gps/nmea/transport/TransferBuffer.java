@@ -0,0 +1,22 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+/**
+ * A preallocated chunk of data read from the GPS, passed from the USB reader to the parsing thread
+ * and then given back to be filled again.
+ */
+public class TransferBuffer {
+    public final byte[] data;
+    /**
+     * Number of bytes of {@link #data} holding data.
+     */
+    public int length;
+    /**
+     * When the transfer completed, in nanoseconds. The USB transports use
+     * android.os.SystemClock.elapsedRealtimeNanos(), a replay uses the clock it was given.
+     */
+    public long receiveTime;
+
+    public TransferBuffer(int size) {
+        data = new byte[size];
+    }
+}
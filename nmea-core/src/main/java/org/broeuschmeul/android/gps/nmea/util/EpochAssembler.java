@@ -0,0 +1,267 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class decides when the sentences of an epoch have all been received, so its fix can be published
+ * without waiting for the first sentence of the next epoch.
+ * <p>
+ * The sentence types the receiver sends every epoch are learnt from the first complete epochs, and learnt again
+ * if the receiver configuration changes. Once they are known, an epoch is published as soon as its last expected
+ * sentence is merged. Until then, or if a sentence goes missing, the epoch is published when no sentence came for
+ * the merge window, or at the latest when the deadline is reached. Both need {@link #check(long)} to be called
+ * regularly while an epoch is pending.
+ * <p>
+ * Every sentence received, even one not merged (i.e. GSV), keeps the merge window open, see {@link #touch(long)}.
+ * The configured window and deadline are minimums: when a sentence with the time of the epoch comes after it was
+ * published for one of them, that one is stretched to the measured gap or burst length, so a slow link (4800 baud)
+ * or a long burst still gets all its sentences merged from the next epochs on.
+ * <p>
+ * Times are in milliseconds, from any monotonic clock.
+ */
+public class EpochAssembler {
+    /**
+     * Number of epochs the sentence types are learnt from.
+     */
+    public static final int LEARNING_EPOCHS = 3;
+    public static final long DEFAULT_MERGE_WINDOW = 150;
+    public static final long DEFAULT_DEADLINE = 600;
+    /**
+     * Bounds of the stretched merge window and deadline, a 1 Hz epoch is published by the next one anyway.
+     */
+    public static final long MAX_MERGE_WINDOW = 500;
+    public static final long MAX_DEADLINE = 1000;
+
+    // Sentence types holding the time of their epoch, a late one of them surely belongs to the published epoch
+    private static final int TIMED_SENTENCES = GpsFix.GGA | GpsFix.GNS | GpsFix.RMC | GpsFix.NAV_PVT;
+
+    /**
+     * Receives the epochs to publish.
+     */
+    public interface EpochListener {
+        void onEpoch(GpsFix fix);
+    }
+
+    private final GpsFix fix = new GpsFix();
+    private final EpochListener listener;
+
+    private long mergeWindow = DEFAULT_MERGE_WINDOW;
+    private long deadline = DEFAULT_DEADLINE;
+    // Measured from the sentences that came too late, 0 until one did
+    private long measuredMergeWindow = 0;
+    private long measuredDeadline = 0;
+
+    // Sentence types expected every epoch, 0 until they are learnt
+    private int expectedSentences = 0;
+    // Sentence types found in every epoch since learning started
+    private int learntSentences = 0;
+    private int learningEpochs = 0;
+    // Epochs in a row whose sentence types didn't match the expected ones
+    private int mismatchedEpochs = 0;
+    // The first epoch after a reset may have been joined halfway
+    private boolean partialEpoch = true;
+
+    private long firstSentenceTime;
+    private long lastSentenceTime;
+    // Set once the merge window is over, no sentence is merged into the epoch anymore
+    private boolean sealed = false;
+    private boolean sealedByDeadline = false;
+
+    public EpochAssembler(EpochListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the fix of the current epoch, the same instance is reused for every epoch
+     */
+    public GpsFix getFix() {
+        return fix;
+    }
+
+    /**
+     * @param mergeWindow time after the last sentence of an incomplete epoch before it is published
+     */
+    public void setMergeWindow(long mergeWindow) {
+        this.mergeWindow = mergeWindow;
+    }
+
+    /**
+     * @return the merge window in use, the configured one or the measured one if it is longer
+     */
+    public long getMergeWindow() {
+        return Math.max(mergeWindow, measuredMergeWindow);
+    }
+
+    /**
+     * @param deadline time after the first sentence of an incomplete epoch before it is published
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the deadline in use, the configured one or the measured one if it is longer
+     */
+    public long getDeadline() {
+        return Math.max(deadline, measuredDeadline);
+    }
+
+    /**
+     * @return the sentence types expected every epoch, or 0 while they are being learnt
+     */
+    public int getExpectedSentences() {
+        return expectedSentences;
+    }
+
+    /**
+     * Closes the current epoch, publishing it if needed, and opens a new one.
+     */
+    public void open(int timeOfDay, long timestamp, long systemTime, long now) {
+        if (fix.isOpen()) {
+            publish();
+            if (partialEpoch) {
+                partialEpoch = false;
+            } else {
+                learn(fix.sentences);
+            }
+        }
+        fix.reset(timeOfDay, timestamp, systemTime);
+        firstSentenceTime = now;
+        lastSentenceTime = now;
+        sealed = false;
+    }
+
+    /**
+     * Tells a valid sentence was received, merged or not, so the epoch is not published while its burst goes on.
+     */
+    public void touch(long now) {
+        check(now);
+        if (fix.isOpen() && !sealed) {
+            lastSentenceTime = now;
+        }
+    }
+
+    /**
+     * Adds a sentence to the current epoch.
+     *
+     * @param sentenceType the type of the sentence, one of the {@link GpsFix} flags
+     * @return true if the sentence must be read into the fix, false if the epoch is already published
+     */
+    public boolean add(int sentenceType, long now) {
+        check(now);
+        if (!fix.isOpen()) {
+            return false;
+        }
+        // Sentences coming after the publication still count for learning
+        fix.sentences |= sentenceType;
+        if (sealed) {
+            if ((sentenceType & TIMED_SENTENCES) != 0) {
+                stretch(now);
+            }
+            return false;
+        }
+        lastSentenceTime = now;
+        return !fix.published;
+    }
+
+    /**
+     * Publishes the epoch if the sentence just read was the last expected one.
+     */
+    public void sentenceDone() {
+        if (!fix.published && isComplete()) {
+            publish();
+        }
+    }
+
+    /**
+     * Publishes the current epoch if its merge window or its deadline is over.
+     *
+     * @return the time until the next check is needed, or -1 if there is nothing pending
+     */
+    public long check(long now) {
+        if (!fix.isOpen() || sealed) {
+            return -1;
+        }
+        long windowEnd = lastSentenceTime + getMergeWindow();
+        long deadlineEnd = firstSentenceTime + getDeadline();
+        long due = Math.min(windowEnd, deadlineEnd);
+        if (now >= due) {
+            sealed = true;
+            sealedByDeadline = deadlineEnd <= windowEnd;
+            publish();
+            return -1;
+        }
+        return fix.published ? -1 : due - now;
+    }
+
+    /**
+     * Drops the current epoch without publishing it. The learnt sentence types are kept.
+     */
+    public void clear() {
+        fix.clear();
+        partialEpoch = true;
+        sealed = false;
+        sealedByDeadline = false;
+    }
+
+    /**
+     * Forgets the learnt sentence types, and the measured merge window and deadline.
+     */
+    public void relearn() {
+        expectedSentences = 0;
+        learntSentences = 0;
+        learningEpochs = 0;
+        mismatchedEpochs = 0;
+        measuredMergeWindow = 0;
+        measuredDeadline = 0;
+    }
+
+    /**
+     * Stretches what sealed the epoch so a sentence coming that late is merged next time, with a margin.
+     */
+    private void stretch(long now) {
+        if (sealedByDeadline) {
+            measuredDeadline = Math.min(MAX_DEADLINE, Math.max(measuredDeadline, (now - firstSentenceTime) * 5 / 4));
+        } else {
+            measuredMergeWindow = Math.min(MAX_MERGE_WINDOW,
+                    Math.max(measuredMergeWindow, (now - lastSentenceTime) * 5 / 4));
+        }
+    }
+
+    private boolean isComplete() {
+        if (expectedSentences != 0) {
+            return fix.has(expectedSentences);
+        }
+        // Still learning, a position fix with the speed is enough
+        return fix.has(GpsFix.NAV_PVT) || fix.has(GpsFix.RMC) && (fix.has(GpsFix.GGA) || fix.has(GpsFix.GNS));
+    }
+
+    private void publish() {
+        if (!fix.published) {
+            fix.published = true;
+            listener.onEpoch(fix);
+        }
+    }
+
+    private void learn(int sentences) {
+        if (expectedSentences == 0) {
+            learntSentences = learningEpochs == 0 ? sentences : learntSentences & sentences;
+            learningEpochs++;
+            if (learningEpochs >= LEARNING_EPOCHS) {
+                if (learntSentences != 0) {
+                    expectedSentences = learntSentences;
+                    mismatchedEpochs = 0;
+                } else {
+                    // Nothing in common, start again
+                    relearn();
+                }
+            }
+        } else if (sentences != expectedSentences) {
+            mismatchedEpochs++;
+            if (mismatchedEpochs >= LEARNING_EPOCHS) {
+                // The receiver configuration has changed
+                relearn();
+            }
+        } else {
+            mismatchedEpochs = 0;
+        }
+    }
+}
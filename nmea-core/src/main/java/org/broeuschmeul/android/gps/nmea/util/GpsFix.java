@@ -0,0 +1,122 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class holds what the sentences of one epoch (i.e. with the same UTC time) say about the fix,
+ * so they can be merged into a single location.
+ * <p>
+ * Only primitive fields are used and the same instance is reset for every epoch, so merging doesn't allocate.
+ * Missing values are NaN, or -1 for the satellite count.
+ */
+public class GpsFix {
+    // Sentence types, as flags
+    public static final int GGA = 1;
+    public static final int GNS = 1 << 1;
+    public static final int RMC = 1 << 2;
+    public static final int GSA = 1 << 3;
+    public static final int VTG = 1 << 4;
+    public static final int GLL = 1 << 5;
+    /**
+     * UBX NAV-PVT, which holds a whole fix.
+     */
+    public static final int NAV_PVT = 1 << 6;
+
+    /**
+     * UTC time of day of the epoch in milliseconds, or -1 when no epoch is open.
+     */
+    public int timeOfDay = -1;
+    /**
+     * UTC timestamp of the epoch, in milliseconds.
+     */
+    public long timestamp;
+    /**
+     * System time when the first sentence of the epoch was received, in milliseconds.
+     */
+    public long systemTime;
+    /**
+     * Sentence types merged into this epoch.
+     */
+    public int sentences;
+    /**
+     * True once the epoch has been published, later sentences of the same epoch are then ignored.
+     */
+    public boolean published;
+
+    public double latitude;
+    public double longitude;
+    /**
+     * Altitude above mean sea level, in meters.
+     */
+    public double altitude;
+    /**
+     * Speed over ground, in m/s.
+     */
+    public float speed;
+    /**
+     * Track angle, in degrees true.
+     */
+    public float bearing;
+    public float hdop;
+    public float vdop;
+    public float pdop;
+    public int satellites;
+    /**
+     * Estimated accuracies, in meters, m/s and degrees, only sent by some receivers (i.e. UBX NAV-PVT).
+     */
+    public float horizontalAccuracy;
+    public float verticalAccuracy;
+    public float speedAccuracy;
+    public float bearingAccuracy;
+
+    public GpsFix() {
+        clear();
+    }
+
+    /**
+     * Opens a new epoch, forgetting everything about the previous one.
+     */
+    public void reset(int timeOfDay, long timestamp, long systemTime) {
+        clear();
+        this.timeOfDay = timeOfDay;
+        this.timestamp = timestamp;
+        this.systemTime = systemTime;
+    }
+
+    /**
+     * Closes the current epoch without opening a new one.
+     */
+    public void clear() {
+        timeOfDay = -1;
+        timestamp = 0;
+        systemTime = 0;
+        sentences = 0;
+        published = false;
+        latitude = Double.NaN;
+        longitude = Double.NaN;
+        altitude = Double.NaN;
+        speed = Float.NaN;
+        bearing = Float.NaN;
+        hdop = Float.NaN;
+        vdop = Float.NaN;
+        pdop = Float.NaN;
+        satellites = -1;
+        horizontalAccuracy = Float.NaN;
+        verticalAccuracy = Float.NaN;
+        speedAccuracy = Float.NaN;
+        bearingAccuracy = Float.NaN;
+    }
+
+    public boolean isOpen() {
+        return timeOfDay >= 0;
+    }
+
+    public boolean hasPosition() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    /**
+     * @return true if all the given sentence types have been merged
+     */
+    public boolean has(int sentenceTypes) {
+        return (sentences & sentenceTypes) == sentenceTypes;
+    }
+}
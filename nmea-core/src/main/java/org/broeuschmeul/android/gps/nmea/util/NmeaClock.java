@@ -0,0 +1,112 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class is used to turn the UTC time of day sent in NMEA sentences (hhmmss.sss) into a timestamp.
+ * <p>
+ * When the GPS has sent a date (RMC), the day is taken from it and rolled over when the time of day wraps
+ * around midnight. Otherwise the day is taken from the system clock, and a fix more than 12 hours away from
+ * the system time is assumed to belong to the previous or the next day.
+ * <p>
+ * Everything is plain arithmetic: the UTC day boundary is cached and only recomputed when the day changes.
+ */
+public class NmeaClock {
+    public static final long DAY_MILLIS = 86400000L;
+    private static final long HALF_DAY_MILLIS = DAY_MILLIS / 2;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // Start of the current UTC day according to the system clock
+    private long systemDayStart = NO_DATE;
+
+    // Start of the UTC day given by the GPS, and the time of day it was last used with
+    private long gpsDayStart = NO_DATE;
+    private int gpsMillisOfDay = 0;
+
+    /**
+     * Sets the date sent by the GPS (RMC) along with the time of day of the same sentence.
+     *
+     * @param day         day of month, 1 to 31
+     * @param month       month, 1 to 12
+     * @param year        full year (i.e. 2024)
+     * @param millisOfDay time of day of the sentence holding the date
+     */
+    public void setDate(int day, int month, int year, int millisOfDay) {
+        if (day < 1 || day > 31 || month < 1 || month > 12 || millisOfDay < 0) {
+            return;
+        }
+        gpsDayStart = daysFromCivil(year, month, day) * DAY_MILLIS;
+        gpsMillisOfDay = millisOfDay;
+    }
+
+    /**
+     * Forgets the date sent by the GPS, so the system clock is used again.
+     */
+    public void clearDate() {
+        gpsDayStart = NO_DATE;
+    }
+
+    /**
+     * @param millisOfDay UTC time of day, in milliseconds
+     * @param now         current system time, in milliseconds
+     * @return the UTC timestamp of the given time of day, in milliseconds
+     */
+    public long toTimestamp(int millisOfDay, long now) {
+        long dayStart;
+        long reference;
+
+        if (gpsDayStart != NO_DATE) {
+            dayStart = gpsDayStart;
+            reference = gpsDayStart + gpsMillisOfDay;
+        } else {
+            if (now < systemDayStart || now - systemDayStart >= DAY_MILLIS || systemDayStart == NO_DATE) {
+                systemDayStart = now - Math.floorMod(now, DAY_MILLIS);
+            }
+            dayStart = systemDayStart;
+            reference = now;
+        }
+
+        long timestamp = dayStart + millisOfDay;
+        // if we're around midnight we could have a problem...
+        if (timestamp - reference > HALF_DAY_MILLIS) {
+            timestamp -= DAY_MILLIS;
+        } else if (reference - timestamp > HALF_DAY_MILLIS) {
+            timestamp += DAY_MILLIS;
+        }
+
+        if (gpsDayStart != NO_DATE) {
+            // Follow the GPS day across midnight until the next date is received
+            gpsDayStart = timestamp - millisOfDay;
+            gpsMillisOfDay = millisOfDay;
+        }
+        return timestamp;
+    }
+
+    /**
+     * @param hhmmss hours, minutes and seconds packed as decimal digits
+     * @param millis milliseconds
+     * @return the time of day in milliseconds, or -1 if it is not a valid time
+     */
+    public static int toMillisOfDay(int hhmmss, int millis) {
+        int hours = hhmmss / 10000;
+        int minutes = (hhmmss / 100) % 100;
+        int seconds = hhmmss % 100;
+
+        // 60 seconds happens on leap seconds
+        if (hours > 23 || minutes > 59 || seconds > 60 || millis < 0 || millis > 999) {
+            return -1;
+        }
+        return ((hours * 60 + minutes) * 60 + seconds) * 1000 + millis;
+    }
+
+    /**
+     * @return the number of days between 1970-01-01 and the given date
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        // see http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,674 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class decodes NMEA sentences into fixes, one per epoch, without any dependency on Android.
+ * <p>
+ * Sentences are validated by {@link NmeaValidator}, read in place by {@link NmeaFields} and merged per epoch by
+ * {@link EpochAssembler}; GSV and GSA also feed a {@link SatelliteModel}. What comes out goes to a {@link Listener},
+ * so the same decoding runs in the provider, in benchmarks and in replays.
+ * <p>
+ * The {@link Ubx} NAV-PVT messages of the u-blox receivers are decoded too, straight from their binary fields,
+ * into the same epochs.
+ * All the methods must be called from the same thread.
+ */
+public class NmeaDecoder {
+    // Sentence types, as returned by NmeaFields.getSentenceType()
+    private static final int GGA = ('G' << 16) | ('G' << 8) | 'A';
+    private static final int GNS = ('G' << 16) | ('N' << 8) | 'S';
+    private static final int RMC = ('R' << 16) | ('M' << 8) | 'C';
+    private static final int GSA = ('G' << 16) | ('S' << 8) | 'A';
+    private static final int VTG = ('V' << 16) | ('T' << 8) | 'G';
+    private static final int GLL = ('G' << 16) | ('L' << 8) | 'L';
+    private static final int GSV = ('G' << 16) | ('S' << 8) | 'V';
+
+    /**
+     * Receives what the sentences say, on the decoding thread.
+     */
+    public interface Listener {
+        /**
+         * Called for every sentence telling whether the GPS has a fix.
+         *
+         * @param available true if the GPS has a fix
+         * @param timeOfDay UTC time of day of the sentence in milliseconds, see {@link #toTimestamp(int)}
+         */
+        void onFixStatus(boolean available, int timeOfDay);
+
+        /**
+         * Called once per epoch with the merged fix, only valid during the call.
+         */
+        void onFix(GpsFix fix);
+    }
+
+    private final Listener listener;
+    private final NmeaValidator validator = new NmeaValidator();
+    private final NmeaFields fields = new NmeaFields();
+
+    private final NmeaClock clock = new NmeaClock();
+
+    // Decides when the epoch being received is complete
+    private final EpochAssembler assembler = new EpochAssembler(new EpochAssembler.EpochListener() {
+        @Override
+        public void onEpoch(GpsFix fix) {
+            if (fix.hasPosition()) {
+                listener.onFix(fix);
+            }
+        }
+    });
+    // What the sentences of the epoch being received say about the fix
+    private final GpsFix epoch = assembler.getFix();
+    // Satellites in view, from GSV and GSA
+    private final SatelliteModel satellites = new SatelliteModel();
+
+    private int lastSentenceTime = -1;
+    private long invalidUbxFrames = 0;
+
+    public NmeaDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes a NMEA sentence given as a slice of a byte buffer, as produced by {@link NmeaFramer}.
+     * <p>
+     * The frame is validated first, so corrupted data is rejected before any field is read.
+     *
+     * @param buffer buffer holding the sentence ($....*XY\r\n)
+     * @param offset offset of the '$'
+     * @param length length of the sentence, including the line terminator
+     * @return true if the sentence is a valid NMEA sentence, false otherwise
+     */
+    public boolean decode(byte[] buffer, int offset, int length) {
+        if (validator.validate(buffer, offset, length) == NmeaValidator.VALID) {
+            // Whatever its type, the burst of the epoch goes on
+            assembler.touch(uptimeMillis());
+            // Without the '$' and the "*XY\r\n"
+            if (parseValidSentence(buffer, offset + 1, length - 6)) {
+                return true;
+            }
+        }
+
+        // As we have received some awful data, it is safe to assume we have missed the current fix
+        clearEpoch();
+        return false;
+    }
+
+    /**
+     * Decodes a UBX frame given as a slice of a byte buffer, as produced by {@link NmeaFramer}.
+     * <p>
+     * The checksum is checked first, and only NAV-PVT is read, other valid messages are ignored.
+     *
+     * @param buffer buffer holding the frame
+     * @param offset offset of the first sync byte
+     * @param length length of the frame, including the checksum
+     * @return true if the frame is a valid UBX frame, false otherwise
+     */
+    public boolean decodeUbx(byte[] buffer, int offset, int length) {
+        if (!Ubx.isValid(buffer, offset, length)) {
+            invalidUbxFrames++;
+            // Same as a corrupted sentence, the current fix may have been missed
+            clearEpoch();
+            return false;
+        }
+        assembler.touch(uptimeMillis());
+
+        if (Ubx.getMessageClass(buffer, offset) == Ubx.CLASS_NAV && Ubx.getMessageId(buffer, offset) == Ubx.NAV_PVT
+                && Ubx.getPayloadLength(buffer, offset) >= Ubx.NAV_PVT_MIN_LENGTH) {
+            parseNavPvt(buffer, offset + Ubx.HEADER_SIZE);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of UBX frames rejected because of their checksum
+     */
+    public long getInvalidUbxFrameCount() {
+        return invalidUbxFrames;
+    }
+
+    /**
+     * Drops the epoch being received, without publishing it.
+     */
+    public void clearEpoch() {
+        assembler.clear();
+    }
+
+    /**
+     * @return the validator used to check sentences, which holds the accepted / rejected counters
+     */
+    public NmeaValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * @return the UTC timestamp in milliseconds of a time of day, using the date of the last RMC
+     */
+    public long toTimestamp(int millisOfDay) {
+        return clock.toTimestamp(millisOfDay, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the UTC time of day in milliseconds of the last sentence holding a time, or -1 if there was none
+     * since {@link #clearLastSentenceTime()}
+     */
+    public int getLastSentenceTime() {
+        return lastSentenceTime;
+    }
+
+    public void clearLastSentenceTime() {
+        lastSentenceTime = -1;
+    }
+
+    /**
+     * Parses the content of a sentence which checksum has already been checked.
+     * Fields are read in place from the buffer, see {@link NmeaFields}.
+     *
+     * @param buffer buffer holding the sentence
+     * @param offset offset of the address field (i.e. just after the '$')
+     * @param length length of the sentence, without the checksum
+     * @return true if the sentence could be read
+     */
+    private boolean parseValidSentence(byte[] buffer, int offset, int length) {
+        fields.set(buffer, offset, length);
+
+        // If the address field length is not 5, safe to assume we got
+        // bad data
+        int type = fields.getSentenceType();
+        if (type == -1) {
+            return false;
+        }
+
+        switch (type) {
+            case GGA: {
+            /* $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
+
+                Where:
+                     GGA          Global Positioning System Fix Data
+                     123519       Fix taken at 12:35:19 UTC
+                     4807.038,N   Latitude 48 deg 07.038' N
+                     01131.000,E  Longitude 11 deg 31.000' E
+                     1            Fix quality: 0 = invalid
+                                               1 = GPS fix (SPS)
+                                               2 = DGPS fix
+                                               3 = PPS fix
+                                               4 = Real Time Kinematic
+                                               5 = Float RTK
+                                               6 = estimated (dead reckoning) (2.3 feature)
+                                               7 = Manual input mode
+                                               8 = Simulation mode
+                     08           Number of satellites being tracked
+                     0.9          Horizontal dilution of position
+                     545.4,M      Altitude, Meters, above mean sea level
+                     46.9,M       Height of geoid (mean sea level) above WGS84
+                                      ellipsoid
+                     (empty field) time in seconds since last DGPS update
+                     (empty field) DGPS station ID number
+                     *47          the checksum data, always begins with *
+             */
+
+                // UTC time of fix HHmmss.S
+                int time = fields.getTimeOfDay(1);
+
+                // latitude ddmm.M (2), direction N/S (3)
+                // longitude dddmm.M (4), direction E/W (5)
+                // fix quality (6)
+                // Number of satellites being tracked (7)
+                // Horizontal dilution of position (8)
+                // Altitude, Meters, above mean sea level (9)
+                // Height of geoid (mean sea level) above WGS84 ellipsoid (11)
+
+                if (time >= 0) {
+                    lastSentenceTime = time;
+                }
+
+                // time in seconds since last DGPS update
+                // DGPS station ID number
+                if (time >= 0 && !fields.isEmpty(6) && !fields.equals(6, '0')) {
+                    listener.onFixStatus(true, time);
+
+                    if (beginEpochSentence(time, GpsFix.GGA)) {
+                        readPosition(2, 4);
+                        readSatellitesAndDop(7, 8);
+                        readAltitude(9);
+                        endEpochSentence();
+                    }
+
+                } else if (time >= 0 && fields.equals(6, '0')) {
+                    listener.onFixStatus(false, time);
+                }
+
+                break;
+            }
+            case GNS: {
+            /*
+            $GNGNS,111719.00,5553.30594,N,03726.19884,E,AAAA,20,0.69,185.3,13.4,,,V*19
+
+                Where:
+                     GNS          GNSS Fix Data
+                     111719.00    Fix taken at 11:17:19 UTC
+                     5553.30594,N Latitude 55 deg 53.30594' N
+                     03726.19884,E Longitude 37 deg 26.19884' E
+                     AAAA         Mode indicator, one character per constellation
+                     20           Number of satellites in use
+                     0.69         Horizontal dilution of position
+                     185.3        Altitude, Meters, above mean sea level
+                     13.4         Height of geoid (mean sea level) above WGS84
+                                      ellipsoid
+                     (empty field) time in seconds since last DGPS update
+                     (empty field) DGPS station ID number
+                     V            Navigational status
+                     *19          the checksum data, always begins with *
+             */
+
+                // UTC time of fix HHmmss.S
+                int time = fields.getTimeOfDay(1);
+
+                // latitude ddmm.M (2), direction N/S (3)
+                // longitude dddmm.M (4), direction E/W (5)
+
+                /* mode indicator, one character per constellation, no fix only if all are N (6):
+                    N = No fix
+                    A = Autonomous
+                    D = Differential
+                    P = Precise
+                    R = Real Time Kinematic
+                    F = Float RTK
+                    E = Estimated (dead reckoning)
+                    M = Manual input mode
+                    S = Simulation mode
+                 */
+                // Number of satellites in use (7)
+                // Horizontal dilution of position (8)
+                // Altitude, Meters, above mean sea level (9)
+                // Height of geoid (mean sea level) above WGS84 ellipsoid (10)
+
+                if (time >= 0) {
+                    lastSentenceTime = time;
+                }
+
+                // time in seconds since last DGPS update
+                // DGPS station ID number
+                if (time >= 0 && !fields.isEmpty(6) && !fields.consistsOf(6, 'N')) {
+                    listener.onFixStatus(true, time);
+
+                    if (beginEpochSentence(time, GpsFix.GNS)) {
+                        readPosition(2, 4);
+                        readSatellitesAndDop(7, 8);
+                        readAltitude(9);
+                        endEpochSentence();
+                    }
+
+                } else if (time >= 0 && fields.consistsOf(6, 'N')) {
+                    listener.onFixStatus(false, time);
+                }
+
+                break;
+            }
+            case RMC: {
+            /* $GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A
+
+               Where:
+                 RMC          Recommended Minimum sentence C
+                 123519       Fix taken at 12:35:19 UTC
+                 A            Status A=active or V=Void.
+                 4807.038,N   Latitude 48 deg 07.038' N
+                 01131.000,E  Longitude 11 deg 31.000' E
+                 022.4        Speed over the ground in knots
+                 084.4        Track angle in degrees True
+                 230394       Date - 23rd of March 1994
+                 003.1,W      Magnetic Variation
+                 *6A          The checksum data, always begins with *
+            */
+
+                // UTC time of fix HHmmss.S
+                int time = fields.getTimeOfDay(1);
+
+                // fix status A/V (2)
+                // latitude ddmm.M (3), direction N/S (4)
+                // longitude dddmm.M (5), direction E/W (6)
+                // Speed over the ground in knots (7)
+                // Track angle in degrees True (8)
+                // UTC date of fix DDMMYY (9)
+                // Magnetic Variation ddd.D (10), direction E/W (11)
+
+                if (time >= 0) {
+                    lastSentenceTime = time;
+
+                    // The date comes from the GPS RTC, so it is there even without a fix
+                    int date = fields.getInt(9, -1);
+                    if (date >= 0) {
+                        int year = date % 100;
+                        clock.setDate(date / 10000, (date / 100) % 100, year < 80 ? 2000 + year : 1900 + year, time);
+                    }
+                }
+
+                // for NMEA 0183 version 3.00 active the Mode indicator field is added
+                // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator )
+                if (fields.equals(2, 'A')) {
+                    if (time >= 0) {
+                        listener.onFixStatus(true, time);
+                    }
+
+                    if (time >= 0 && beginEpochSentence(time, GpsFix.RMC)) {
+                        readPosition(3, 5);
+                        readSpeedAndBearing(7, 8);
+                        endEpochSentence();
+                    }
+
+                } else if (fields.equals(2, 'V') && time >= 0) {
+                    listener.onFixStatus(false, time);
+                }
+
+                break;
+            }
+            case GSA: {
+            /*  $GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39
+
+                Where:
+                     GSA      Satellite status
+                     A        Auto selection of 2D or 3D fix (M = manual)
+                     3        3D fix - values include: 1 = no fix
+                                                       2 = 2D fix
+                                                       3 = 3D fix
+                     04,05... PRNs of satellites used for fix (space for 12)
+                     2.5      PDOP (Position dilution of precision)
+                     1.3      Horizontal dilution of precision (HDOP)
+                     2.1      Vertical dilution of precision (VDOP)
+                     *39      the checksum data, always begins with *
+             */
+
+                // mode : A Auto selection of 2D or 3D fix / M = manual (1)
+                // fix type  : 1 - no fix / 2 - 2D / 3 - 3D (2)
+                // PRNs of satellites used for fix, space for 12 (3 to 14)
+                // Position dilution of precision (15)
+                // Horizontal dilution of precision (16)
+                // Vertical dilution of precision (17)
+
+                satellites.parseGsa(fields);
+
+                // Has no time, so it belongs to the epoch being received.
+                // Receivers tracking several constellations send one GSA per constellation, with the same DOPs
+                if (!fields.equals(2, '1') && beginEpochSentence(epoch.timeOfDay, GpsFix.GSA)) {
+                    if (!fields.isEmpty(15)) {
+                        epoch.pdop = fields.getFloat(15);
+                    }
+                    if (!fields.isEmpty(16) && Float.isNaN(epoch.hdop)) {
+                        epoch.hdop = fields.getFloat(16);
+                    }
+                    if (!fields.isEmpty(17)) {
+                        epoch.vdop = fields.getFloat(17);
+                    }
+                    endEpochSentence();
+                }
+
+                break;
+            }
+            case VTG: {
+        /*  $GPVTG,054.7,T,034.4,M,005.5,N,010.2,K*48
+
+            where:
+                    VTG          Track made good and ground speed
+                    054.7,T      True track made good (degrees)
+                    034.4,M      Magnetic track made good
+                    005.5,N      Ground speed, knots
+                    010.2,K      Ground speed, Kilometers per hour
+                    *48          Checksum
+         */
+
+                // Track angle in degrees True (1), T (2)
+                // Magnetic track made good (3), M (4)
+                // Speed over the ground in knots (5), N (6)
+                // Speed over the ground in Kilometers per hour (7), K (8)
+                // for NMEA 0183 version 3.00 active the Mode indicator field is added
+                // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator) (9)
+
+                // Has no time, so it belongs to the epoch being received
+                if (!fields.equals(9, 'N') && beginEpochSentence(epoch.timeOfDay, GpsFix.VTG)) {
+                    readSpeedAndBearing(5, 1);
+                    if (Float.isNaN(epoch.speed) && !fields.isEmpty(7)) {
+                        epoch.speed = fields.getFloat(7) / 3.6f;
+                    }
+                    endEpochSentence();
+                }
+
+                break;
+            }
+            case GLL: {
+        /*  $GPGLL,4916.45,N,12311.12,W,225444,A,*1D
+
+            Where:
+                 GLL          Geographic position, Latitude and Longitude
+                 4916.46,N    Latitude 49 deg. 16.45 min. North
+                 12311.12,W   Longitude 123 deg. 11.12 min. West
+                 225444       Fix taken at 22:54:44 UTC
+                 A            Data Active or V (void)
+                 *iD          checksum data
+         */
+
+                // latitude ddmm.M (1), direction N/S (2)
+                // longitude dddmm.M (3), direction E/W (4)
+
+                // UTC time of fix HHmmss.S
+                int time = fields.getTimeOfDay(5);
+
+                // fix status A/V (6)
+
+                if (time >= 0) {
+                    lastSentenceTime = time;
+                }
+
+                // for NMEA 0183 version 3.00 active the Mode indicator field is added
+                // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator )
+                break;
+            }
+            case GSV: {
+            /*  $GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45*75
+
+                Where:
+                     GSV          Satellites in view
+                     2            Number of sentences for full data
+                     1            sentence 1 of 2
+                     08           Number of satellites in view
+                     01           Satellite PRN number
+                     40           Elevation, degrees
+                     083          Azimuth, degrees
+                     46           SNR - higher is better
+                                  for up to 4 satellites per sentence
+                     *75          the checksum data, always begins with *
+             */
+
+                // Has no time, the satellites are given to the listener at the end of the epoch
+                satellites.parseGsv(fields);
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a NAV-PVT payload which checksum has already been checked. Everything is a binary field at a fixed
+     * offset, so the whole fix is read without parsing any text.
+     *
+     * @param buffer  buffer holding the frame
+     * @param payload offset of the payload
+     */
+    private void parseNavPvt(byte[] buffer, int payload) {
+        /*  UBX-NAV-PVT, little endian
+
+                 0  U4  iTOW       GPS time of week of the navigation epoch, ms
+                 4  U2  year       UTC
+                 6  U1  month
+                 7  U1  day
+                 8  U1  hour
+                 9  U1  min
+                10  U1  sec
+                11  X1  valid      validDate (0), validTime (1), fullyResolved (2)
+                12  U4  tAcc       time accuracy estimate, ns
+                16  I4  nano       fraction of second, -1e9..1e9, ns
+                20  U1  fixType    0 = no fix, 1 = dead reckoning only, 2 = 2D, 3 = 3D,
+                                   4 = GNSS + dead reckoning, 5 = time only
+                21  X1  flags      gnssFixOK (0)
+                22  X1  flags2
+                23  U1  numSV      number of satellites used
+                24  I4  lon        1e-7 deg
+                28  I4  lat        1e-7 deg
+                32  I4  height     above the ellipsoid, mm
+                36  I4  hMSL       above mean sea level, mm
+                40  U4  hAcc       horizontal accuracy estimate, mm
+                44  U4  vAcc       vertical accuracy estimate, mm
+                48  I4  velN       mm/s
+                52  I4  velE       mm/s
+                56  I4  velD       mm/s
+                60  I4  gSpeed     ground speed, mm/s
+                64  I4  headMot    heading of motion, 1e-5 deg
+                68  U4  sAcc       speed accuracy estimate, mm/s
+                72  U4  headAcc    heading accuracy estimate, 1e-5 deg
+                76  U2  pDOP       0.01
+                78  X1  flags3     invalidLlh (0), reserved before protocol 27
+         */
+
+        int valid = Ubx.getU1(buffer, payload + 11);
+        if ((valid & 0x02) == 0) {
+            // Without its UTC time, the solution can't be put in an epoch
+            return;
+        }
+        int second = NmeaClock.toMillisOfDay(Ubx.getU1(buffer, payload + 8) * 10000
+                + Ubx.getU1(buffer, payload + 9) * 100 + Ubx.getU1(buffer, payload + 10), 0);
+        if (second < 0) {
+            return;
+        }
+        // Rounded to the millisecond, as in the sentences of the same epoch
+        long millis = second + Math.floorDiv(Ubx.getI4(buffer, payload + 16) + 500000, 1000000);
+        int time = (int) Math.floorMod(millis, NmeaClock.DAY_MILLIS);
+        lastSentenceTime = time;
+
+        if ((valid & 0x01) != 0 && millis == time) {
+            clock.setDate(Ubx.getU1(buffer, payload + 7), Ubx.getU1(buffer, payload + 6),
+                    Ubx.getU2(buffer, payload + 4), time);
+        }
+
+        int fixType = Ubx.getU1(buffer, payload + 20);
+        boolean fixOk = (Ubx.getU1(buffer, payload + 21) & 0x01) != 0
+                && (Ubx.getU1(buffer, payload + 78) & 0x01) == 0;
+        if (!fixOk || fixType < 1 || fixType > 4) {
+            listener.onFixStatus(false, time);
+            return;
+        }
+        listener.onFixStatus(true, time);
+
+        if (beginEpochSentence(time, GpsFix.NAV_PVT)) {
+            epoch.longitude = Ubx.getI4(buffer, payload + 24) * 1e-7;
+            epoch.latitude = Ubx.getI4(buffer, payload + 28) * 1e-7;
+            epoch.horizontalAccuracy = Ubx.getU4(buffer, payload + 40) / 1000f;
+            if (fixType != 2) {
+                epoch.altitude = Ubx.getI4(buffer, payload + 36) / 1000.0;
+                epoch.verticalAccuracy = Ubx.getU4(buffer, payload + 44) / 1000f;
+            }
+            epoch.speed = Ubx.getI4(buffer, payload + 60) / 1000f;
+            epoch.bearing = Ubx.getI4(buffer, payload + 64) * 1e-5f;
+            epoch.speedAccuracy = Ubx.getU4(buffer, payload + 68) / 1000f;
+            epoch.bearingAccuracy = Ubx.getU4(buffer, payload + 72) * 1e-5f;
+            epoch.pdop = Ubx.getU2(buffer, payload + 76) * 0.01f;
+            epoch.satellites = Ubx.getU1(buffer, payload + 23);
+            endEpochSentence();
+        }
+    }
+
+    /**
+     * Merges the current sentence into the epoch of the given time, publishing the previous epoch
+     * if this sentence starts a new one.
+     *
+     * @param time         UTC time of day of the sentence, or -1 for a sentence without time
+     * @param sentenceType the type of the sentence, or of the UBX message, one of the {@link GpsFix} flags
+     * @return true if the sentence must be read into {@link #epoch}, false if its epoch is already published
+     */
+    private boolean beginEpochSentence(int time, int sentenceType) {
+        if (time < 0) {
+            return false;
+        }
+        long now = uptimeMillis();
+        if (time != epoch.timeOfDay) {
+            satellites.endEpoch(epoch.timeOfDay);
+            assembler.open(time, toTimestamp(time), System.currentTimeMillis(), now);
+        }
+        return assembler.add(sentenceType, now);
+    }
+
+    /**
+     * Publishes the epoch if the sentence just read was the last one the GPS sends for it.
+     */
+    private void endEpochSentence() {
+        assembler.sentenceDone();
+    }
+
+    /**
+     * Publishes the epoch being received if it is overdue.
+     * Must be called from the thread decoding the sentences, at least as often as it asks for.
+     *
+     * @return the time in milliseconds until the next call is needed, or -1 if no epoch is pending
+     */
+    public long checkPendingEpoch() {
+        return assembler.check(uptimeMillis());
+    }
+
+    /**
+     * @return the monotonic time the epochs are timed with, in milliseconds
+     */
+    protected long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @param listener receives the satellites in view at the end of each epoch, on the parsing thread
+     */
+    public void setSatelliteListener(SatelliteModel.SnapshotListener listener) {
+        satellites.setListener(listener);
+    }
+
+    /**
+     * @param mergeWindow time in milliseconds without any sentence after which an incomplete epoch is published
+     */
+    public void setMergeWindow(long mergeWindow) {
+        assembler.setMergeWindow(mergeWindow);
+    }
+
+    /**
+     * @param deadline time in milliseconds after the first sentence of an epoch after which it is published
+     *                 even if it is incomplete
+     */
+    public void setEpochDeadline(long deadline) {
+        assembler.setDeadline(deadline);
+    }
+
+    private void readPosition(int latitudeField, int longitudeField) {
+        if (!fields.isEmpty(latitudeField) && !fields.isEmpty(latitudeField + 1)) {
+            epoch.latitude = fields.getDegrees(latitudeField, latitudeField + 1);
+        }
+        if (!fields.isEmpty(longitudeField) && !fields.isEmpty(longitudeField + 1)) {
+            epoch.longitude = fields.getDegrees(longitudeField, longitudeField + 1);
+        }
+    }
+
+    private void readSatellitesAndDop(int satellitesField, int hdopField) {
+        if (!fields.isEmpty(satellitesField)) {
+            epoch.satellites = fields.getInt(satellitesField, 0);
+        }
+        if (!fields.isEmpty(hdopField)) {
+            epoch.hdop = fields.getFloat(hdopField);
+        }
+    }
+
+    private void readAltitude(int altitudeField) {
+        if (!fields.isEmpty(altitudeField)) {
+            epoch.altitude = fields.getDouble(altitudeField);
+        }
+    }
+
+    private void readSpeedAndBearing(int knotsField, int bearingField) {
+        if (!fields.isEmpty(knotsField) && Float.isNaN(epoch.speed)) {
+            epoch.speed = fields.getSpeedFromKnots(knotsField);
+        }
+        if (!fields.isEmpty(bearingField) && Float.isNaN(epoch.bearing)) {
+            epoch.bearing = fields.getFloat(bearingField);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is used to read the comma separated fields of a NMEA sentence straight from the buffer it was
+ * received in.
+ * <p>
+ * The fields are only indexed (start and end offsets), and the numeric decoders read the digits into a
+ * fixed point value, so decoding a sentence doesn't create any String and doesn't go through the JDK
+ * floating point parsers. All the digits sent by the GPS are kept, up to 18 significant digits.
+ * <p>
+ * As with a splitter, a field past the end of the sentence is seen as an empty field.
+ */
+public class NmeaFields {
+    /**
+     * More than enough for standard sentences (GSA has 18 fields, GSV 20, GNS 13).
+     */
+    public static final int MAX_FIELDS = 64;
+
+    private static final long[] POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+            10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L,
+            1000000000000000L, 10000000000000000L, 100000000000000000L, 1000000000000000000L
+    };
+
+    private static final int MAX_DIGITS = 18;
+    private static final double KNOTS_TO_METERS_PER_SECOND = 1.852 / 3.6;
+
+    private final int[] starts = new int[MAX_FIELDS];
+    private final int[] ends = new int[MAX_FIELDS];
+    private byte[] buffer;
+    private int count = 0;
+
+    // Result of the last call to readFixedPoint()
+    private long mantissa;
+    private int scale;
+
+    /**
+     * Indexes the fields of a sentence.
+     *
+     * @param buffer buffer holding the sentence
+     * @param offset offset of the first field (i.e. just after the '$')
+     * @param length length of the sentence content, without the checksum
+     */
+    public void set(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        int end = offset + length;
+        int start = offset;
+        count = 0;
+
+        for (int i = offset; i <= end && count < MAX_FIELDS; i++) {
+            if (i == end || buffer[i] == ',') {
+                starts[count] = start;
+                ends[count] = i;
+                count++;
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * @return the number of fields in the sentence, including the address field
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty(int field) {
+        return field >= count || starts[field] == ends[field];
+    }
+
+    public int length(int field) {
+        return field < count ? ends[field] - starts[field] : 0;
+    }
+
+    /**
+     * @return the first character of the field, or 0 if it is empty
+     */
+    public char charAt(int field) {
+        return isEmpty(field) ? 0 : (char) buffer[starts[field]];
+    }
+
+    /**
+     * @return true if the field is exactly the given character
+     */
+    public boolean equals(int field, char c) {
+        return length(field) == 1 && buffer[starts[field]] == c;
+    }
+
+    /**
+     * @return true if the field contains the given character
+     */
+    public boolean contains(int field, char c) {
+        if (field < count) {
+            for (int i = starts[field]; i < ends[field]; i++) {
+                if (buffer[i] == c) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the field is not empty and only made of the given character
+     */
+    public boolean consistsOf(int field, char c) {
+        if (isEmpty(field)) {
+            return false;
+        }
+        for (int i = starts[field]; i < ends[field]; i++) {
+            if (buffer[i] != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Packs the sentence type of a standard address field (ttSSS) in an int, so it can be used in a switch.
+     *
+     * @return the type packed with {@link #type(char, char, char)}, or -1 if the address field is not 5 characters long
+     */
+    public int getSentenceType() {
+        if (length(0) != 5) {
+            return -1;
+        }
+        int start = starts[0];
+        return type((char) buffer[start + 2], (char) buffer[start + 3], (char) buffer[start + 4]);
+    }
+
+    /**
+     * Packs the talker of a standard address field (ttSSS) in an int.
+     *
+     * @return the talker packed with {@link #talker(char, char)}, or -1 if the address field is not 5 characters long
+     */
+    public int getTalker() {
+        if (length(0) != 5) {
+            return -1;
+        }
+        int start = starts[0];
+        return talker((char) buffer[start], (char) buffer[start + 1]);
+    }
+
+    /**
+     * Packs a talker in an int, as returned by {@link #getTalker()}
+     */
+    public static int talker(char c1, char c2) {
+        return (c1 << 8) | c2;
+    }
+
+    /**
+     * Packs a sentence type in an int, as returned by {@link #getSentenceType()}
+     */
+    public static int type(char c1, char c2, char c3) {
+        return (c1 << 16) | (c2 << 8) | c3;
+    }
+
+    /**
+     * Copies the field in a String. Only meant for rarely used fields, as it allocates.
+     *
+     * @return the field content, or an empty string
+     */
+    public String getString(int field) {
+        if (isEmpty(field)) {
+            return "";
+        }
+        return new String(buffer, starts[field], ends[field] - starts[field], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the integer value of the field, or defaultValue if the field is empty
+     * @throws NumberFormatException if the field is not a number
+     */
+    public int getInt(int field, int defaultValue) {
+        if (isEmpty(field)) {
+            return defaultValue;
+        }
+        readFixedPoint(field);
+        return (int) (mantissa / POW10[scale]);
+    }
+
+    /**
+     * @return the value of a decimal field, or NaN if the field is empty
+     * @throws NumberFormatException if the field is not a number
+     */
+    public double getDouble(int field) {
+        if (isEmpty(field)) {
+            return Double.NaN;
+        }
+        readFixedPoint(field);
+        // Up to 15 significant digits both values are exact doubles, so there is a single rounding
+        return (double) mantissa / POW10[scale];
+    }
+
+    /**
+     * @return the value of a decimal field, or NaN if the field is empty
+     * @throws NumberFormatException if the field is not a number
+     */
+    public float getFloat(int field) {
+        return (float) getDouble(field);
+    }
+
+    /**
+     * @return the speed in m/s of a field given in knots, or NaN if the field is empty
+     * @throws NumberFormatException if the field is not a number
+     */
+    public float getSpeedFromKnots(int field) {
+        return (float) (getDouble(field) * KNOTS_TO_METERS_PER_SECOND);
+    }
+
+    /**
+     * Decodes a UTC time of day (hhmmss or hhmmss.sss)
+     *
+     * @return the time of day in milliseconds, or -1 if the field is empty or not a valid time
+     * @throws NumberFormatException if the field is not a number
+     */
+    public int getTimeOfDay(int field) {
+        if (isEmpty(field)) {
+            return -1;
+        }
+        readFixedPoint(field);
+
+        long unit = POW10[scale];
+        long hhmmss = mantissa / unit;
+        long millis = (mantissa % unit) * 1000 / unit;
+        if (mantissa < 0 || hhmmss > 999999) {
+            return -1;
+        }
+        return NmeaClock.toMillisOfDay((int) hhmmss, (int) millis);
+    }
+
+    /**
+     * Decodes a latitude (ddmm.mmmm) or a longitude (dddmm.mmmm) with its direction field.
+     * <p>
+     * The minutes are kept as an integer number of their smallest unit until the final division,
+     * so the precision of RTK receivers is not lost.
+     *
+     * @param field          field holding the value
+     * @param directionField field holding N, S, E or W
+     * @return the value in decimal degrees, negative to the south and west, or NaN if a field is empty
+     * @throws NumberFormatException if the field is not a number
+     */
+    public double getDegrees(int field, int directionField) {
+        if (isEmpty(field) || isEmpty(directionField)) {
+            return Double.NaN;
+        }
+        readFixedPoint(field);
+
+        // Keeps 100 * unit in a long
+        if (scale > MAX_DIGITS - 2) {
+            mantissa /= POW10[scale - (MAX_DIGITS - 2)];
+            scale = MAX_DIGITS - 2;
+        }
+
+        long unit = POW10[scale];
+        long degrees = mantissa / (100 * unit);
+        long minutes = mantissa - degrees * 100 * unit;
+        double value = degrees + minutes / (60.0 * unit);
+
+        char direction = charAt(directionField);
+        if (direction == 'S' || direction == 'W') {
+            return -value;
+        } else if (direction == 'N' || direction == 'E') {
+            return value;
+        }
+        return 0.0;
+    }
+
+    /**
+     * Reads the digits of a field into {@link #mantissa} and {@link #scale} (value = mantissa / 10^scale).
+     * Digits beyond 18 significant ones are ignored.
+     */
+    private void readFixedPoint(int field) {
+        int i = starts[field];
+        int end = ends[field];
+        boolean negative = false;
+        boolean decimals = false;
+        int digits = 0;
+        long value = 0;
+        int decimalCount = 0;
+
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Invalid number in field " + field);
+        }
+
+        for (; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                if (digits < MAX_DIGITS && decimalCount < MAX_DIGITS) {
+                    value = value * 10 + (b - '0');
+                    if (value != 0) {
+                        digits++;
+                    }
+                    if (decimals) {
+                        decimalCount++;
+                    }
+                } else if (!decimals) {
+                    throw new NumberFormatException("Number too large in field " + field);
+                }
+            } else if (b == '.' && !decimals) {
+                decimals = true;
+            } else {
+                throw new NumberFormatException("Invalid number in field " + field);
+            }
+        }
+
+        mantissa = negative ? -value : value;
+        scale = decimalCount;
+    }
+}
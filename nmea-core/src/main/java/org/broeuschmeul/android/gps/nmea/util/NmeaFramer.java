@@ -0,0 +1,207 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class is used to cut a raw byte stream coming from the GPS into NMEA frames.
+ * <p>
+ * Bytes are accumulated in a single reusable buffer, starting at a '$' and ending at the '\n'
+ * of the line terminator. Each complete frame is handed to the {@link FrameListener} as a slice
+ * of that buffer, so no object is created per sentence. The slice is only valid during the callback.
+ * <p>
+ * Frames are always given with a "\r\n" terminator, even if the GPS only sends '\n'.
+ * Bytes outside of a frame are skipped, and a frame longer than the buffer is dropped.
+ * <p>
+ * {@link Ubx} frames sent in the same stream are found from their sync bytes and cut by their length, so their
+ * binary payload is never mistaken for NMEA. They are handed to the {@link UbxFrameListener}, if there is one,
+ * the same way; checking their checksum is up to it.
+ */
+public class NmeaFramer {
+    /**
+     * NMEA 0183 limits sentences to 82 characters, but proprietary sentences
+     * (and some long GSV/GNS variants) can be a lot longer.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024;
+
+    // UBX scanner states
+    private static final int UBX_NONE = 0;
+    private static final int UBX_SYNC = 1;
+    private static final int UBX_HEADER = 2;
+    private static final int UBX_BODY = 3;
+    private static final int UBX_SKIP = 4;
+
+    private final byte[] frame;
+    private final FrameListener listener;
+    private UbxFrameListener ubxListener = null;
+    private int length = 0;
+    private boolean inFrame = false;
+    private long overflowCount = 0;
+
+    private int ubxState = UBX_NONE;
+    // Bytes left in the UBX frame, checksum included
+    private int ubxRemaining = 0;
+
+    public NmeaFramer(FrameListener listener) {
+        this(DEFAULT_MAX_FRAME_LENGTH, listener);
+    }
+
+    public NmeaFramer(int maxFrameLength, FrameListener listener) {
+        this.frame = new byte[maxFrameLength];
+        this.listener = listener;
+    }
+
+    /**
+     * @param ubxListener receives the UBX frames, or null to skip them
+     */
+    public void setUbxListener(UbxFrameListener ubxListener) {
+        this.ubxListener = ubxListener;
+    }
+
+    /**
+     * Scans the given bytes and notifies the listener for every frame completed by them.
+     *
+     * @param data   bytes received from the GPS
+     * @param offset first byte to scan
+     * @param count  number of bytes to scan
+     */
+    public void feed(byte[] data, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+
+            if (ubxState != UBX_NONE && scanUbx(b)) {
+                continue;
+            }
+
+            if ((b & 0xFF) == Ubx.SYNC_1) {
+                // Never part of a sentence, which is ASCII
+                ubxState = UBX_SYNC;
+                inFrame = false;
+                length = 0;
+
+            } else if (b == '$') {
+                // A new sentence always restarts the frame, even if the previous one was cut
+                frame[0] = b;
+                length = 1;
+                inFrame = true;
+
+            } else if (inFrame) {
+                if (b == '\n' && frame[length - 1] != '\r' && length < frame.length) {
+                    frame[length++] = '\r';
+                }
+
+                if (length == frame.length) {
+                    // Too long to be a sentence, wait for the next '$'
+                    overflowCount++;
+                    inFrame = false;
+                    length = 0;
+                    continue;
+                }
+
+                frame[length++] = b;
+
+                if (b == '\n') {
+                    inFrame = false;
+                    listener.onFrame(frame, 0, length);
+                    length = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets any partially received frame.
+     */
+    public void reset() {
+        inFrame = false;
+        length = 0;
+        ubxState = UBX_NONE;
+    }
+
+    /**
+     * Goes on with the UBX frame being received.
+     *
+     * @return false if the byte was not part of it, and must be scanned as NMEA
+     */
+    private boolean scanUbx(byte b) {
+        switch (ubxState) {
+            case UBX_SYNC:
+                if ((b & 0xFF) != Ubx.SYNC_2) {
+                    ubxState = UBX_NONE;
+                    return false;
+                }
+                frame[0] = (byte) Ubx.SYNC_1;
+                frame[1] = b;
+                length = 2;
+                ubxState = UBX_HEADER;
+                break;
+
+            case UBX_HEADER:
+                frame[length++] = b;
+                if (length == Ubx.HEADER_SIZE) {
+                    int payloadLength = Ubx.getPayloadLength(frame, 0);
+                    ubxRemaining = payloadLength + Ubx.CHECKSUM_SIZE;
+                    if (payloadLength > Ubx.MAX_PAYLOAD) {
+                        // Not a frame after all
+                        ubxState = UBX_NONE;
+                        length = 0;
+                    } else if (Ubx.HEADER_SIZE + ubxRemaining > frame.length) {
+                        // A real frame too long for the buffer, its bytes are not NMEA either
+                        overflowCount++;
+                        ubxState = UBX_SKIP;
+                        length = 0;
+                    } else {
+                        ubxState = UBX_BODY;
+                    }
+                }
+                break;
+
+            case UBX_BODY:
+                frame[length++] = b;
+                if (--ubxRemaining == 0) {
+                    ubxState = UBX_NONE;
+                    if (ubxListener != null) {
+                        ubxListener.onUbxFrame(frame, 0, length);
+                    }
+                    length = 0;
+                }
+                break;
+
+            case UBX_SKIP:
+                if (--ubxRemaining == 0) {
+                    ubxState = UBX_NONE;
+                }
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of frames, NMEA or UBX, dropped because they were longer than the buffer
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Used to receive the frames found by a {@link NmeaFramer}
+     */
+    public interface FrameListener {
+        /**
+         * @param buffer buffer holding the frame, only valid during the call
+         * @param offset offset of the '$'
+         * @param length length of the frame, including the line terminator
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Used to receive the UBX frames found by a {@link NmeaFramer}
+     */
+    public interface UbxFrameListener {
+        /**
+         * @param buffer buffer holding the frame, only valid during the call
+         * @param offset offset of the first sync byte
+         * @param length length of the frame, including the checksum
+         */
+        void onUbxFrame(byte[] buffer, int offset, int length);
+    }
+}
@@ -0,0 +1,73 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class is used to tell whether a stream of bytes looks like GPS data, by counting the NMEA sentences
+ * with a valid checksum and the UBX frames with a valid checksum found in it.
+ * <p>
+ * Data read at the wrong baud rate is garbage in which a valid checksum is very unlikely, so a couple of
+ * valid frames is a good sign that the speed is right. The frames are cut by a {@link NmeaFramer}, so they
+ * are exactly the ones the reading loop will see at that speed.
+ */
+public class NmeaStreamScorer implements NmeaFramer.FrameListener, NmeaFramer.UbxFrameListener {
+    private final NmeaFramer framer = new NmeaFramer(this);
+    private final NmeaValidator validator = new NmeaValidator();
+
+    private long byteCount = 0;
+    private int validFrames = 0;
+    private int invalidFrames = 0;
+
+    public NmeaStreamScorer() {
+        framer.setUbxListener(this);
+    }
+
+    public void feed(byte[] data, int offset, int count) {
+        byteCount += count;
+        framer.feed(data, offset, count);
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (validator.validate(buffer, offset, length) == NmeaValidator.VALID) {
+            validFrames++;
+        } else {
+            invalidFrames++;
+        }
+    }
+
+    @Override
+    public void onUbxFrame(byte[] buffer, int offset, int length) {
+        if (Ubx.isValid(buffer, offset, length)) {
+            validFrames++;
+        } else {
+            invalidFrames++;
+        }
+    }
+
+    /**
+     * @return the number of bytes fed since the last reset
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of NMEA sentences and UBX frames with a valid checksum
+     */
+    public int getValidFrames() {
+        return validFrames;
+    }
+
+    /**
+     * @return the number of NMEA sentences and UBX frames with a wrong checksum
+     */
+    public int getInvalidFrames() {
+        return invalidFrames;
+    }
+
+    public void reset() {
+        framer.reset();
+        byteCount = 0;
+        validFrames = 0;
+        invalidFrames = 0;
+    }
+}
@@ -0,0 +1,102 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class is used to check that a NMEA frame ($....*XY\r\n) is well formed and that its checksum is right,
+ * before any other work is done on it.
+ * <p>
+ * The checksum is computed in a single pass over the raw bytes and compared numerically to the
+ * hexadecimal digits of the frame. Counters of accepted, bad checksum and malformed frames are kept.
+ */
+public class NmeaValidator {
+    public static final int VALID = 0;
+    public static final int BAD_CHECKSUM = 1;
+    public static final int MALFORMED = 2;
+
+    /**
+     * Smallest possible frame: "$*XY\r\n"
+     */
+    private static final int MIN_FRAME_LENGTH = 6;
+
+    private long acceptedCount = 0;
+    private long badChecksumCount = 0;
+    private long malformedCount = 0;
+
+    /**
+     * Validates a frame given as a slice of a byte buffer.
+     *
+     * @param buffer buffer holding the frame
+     * @param offset offset of the '$'
+     * @param length length of the frame, including the line terminator
+     * @return {@link #VALID}, {@link #BAD_CHECKSUM} or {@link #MALFORMED}
+     */
+    public int validate(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+
+        if (length < MIN_FRAME_LENGTH || buffer[offset] != '$' || buffer[end - 5] != '*'
+                || buffer[end - 2] != '\r' || buffer[end - 1] != '\n') {
+            return malformed();
+        }
+
+        int checksum = 0;
+        for (int i = offset + 1; i < end - 5; i++) {
+            byte b = buffer[i];
+            if (b == '$' || b == '*') {
+                return malformed();
+            }
+            checksum ^= b;
+        }
+
+        return checkSum(checksum & 0xFF, hexValue(buffer[end - 4]), hexValue(buffer[end - 3]));
+    }
+
+    private int checkSum(int checksum, int high, int low) {
+        if (high < 0 || low < 0) {
+            return malformed();
+        }
+
+        if (((high << 4) | low) != checksum) {
+            badChecksumCount++;
+            return BAD_CHECKSUM;
+        }
+
+        acceptedCount++;
+        return VALID;
+    }
+
+    private int malformed() {
+        malformedCount++;
+        return MALFORMED;
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of frames with a valid checksum
+     */
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    /**
+     * @return the number of well formed frames with a wrong checksum
+     */
+    public long getBadChecksumCount() {
+        return badChecksumCount;
+    }
+
+    /**
+     * @return the number of frames that are not $....*XY\r\n
+     */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+}
@@ -0,0 +1,292 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * This class keeps the satellites in view of each constellation, from the GSV and GSA sentences.
+ * <p>
+ * The parts of a GSV message are assembled per talker, and the table of a constellation is only replaced once
+ * all of them are received. The PRNs listed by GSA link the satellites to the fix. Everything is kept in
+ * primitive arrays indexed by constellation, and the snapshot given to the listener is filled in place,
+ * so nothing is allocated per satellite or per epoch.
+ * <p>
+ * Receivers sending NMEA 4.10 signal ids send one GSV message per signal, only the first one of each epoch
+ * is kept.
+ */
+public class SatelliteModel {
+    public static final int GPS = 0;
+    public static final int GLONASS = 1;
+    public static final int GALILEO = 2;
+    public static final int BEIDOU = 3;
+    public static final int QZSS = 4;
+    public static final int CONSTELLATIONS = 5;
+
+    /**
+     * Satellites kept per constellation.
+     */
+    public static final int MAX_SATELLITES = 64;
+
+    /**
+     * Epochs without any GSV message after which the satellites of a constellation are forgotten.
+     */
+    public static final int STALE_EPOCHS = 20;
+
+    // Used PRNs a GSA can list
+    private static final int GSA_PRNS = 12;
+
+    private static final String[] CONSTELLATION_NAMES = {"GP", "GL", "GA", "GB", "GQ"};
+
+    /**
+     * Receives a snapshot of the satellites at the end of each epoch, on the parsing thread.
+     */
+    public interface SnapshotListener {
+        /**
+         * @param snapshot only valid during the call, it is filled again for the next epoch
+         */
+        void onSatellites(SatelliteSnapshot snapshot);
+    }
+
+    // Satellites in view, MAX_SATELLITES slots per constellation
+    private final int[] prns = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] elevations = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] azimuths = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] snrs = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] counts = new int[CONSTELLATIONS];
+    private final long[] updateEpochs = new long[CONSTELLATIONS];
+
+    // GSV messages being assembled
+    private final int[] partPrns = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] partElevations = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] partAzimuths = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] partSnrs = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] partCounts = new int[CONSTELLATIONS];
+    // Number of the next expected part, 0 when no message is being assembled
+    private final int[] nextParts = new int[CONSTELLATIONS];
+
+    // PRNs used in the fix, from the GSA of the current epoch
+    private final int[] usedPrns = new int[CONSTELLATIONS * MAX_SATELLITES];
+    private final int[] usedCounts = new int[CONSTELLATIONS];
+    private final long[] usedEpochs = new long[CONSTELLATIONS];
+
+    private final SatelliteSnapshot snapshot = new SatelliteSnapshot();
+    private SnapshotListener listener = null;
+    private long epoch = 1;
+
+    public void setListener(SnapshotListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return a two letters name of the constellation, as its NMEA talker
+     */
+    public static String getConstellationName(int constellation) {
+        return constellation >= 0 && constellation < CONSTELLATIONS ? CONSTELLATION_NAMES[constellation] : "??";
+    }
+
+    /**
+     * @return the constellation of a talker, or -1 for GN and unknown talkers
+     */
+    public static int getConstellation(int talker) {
+        switch (talker) {
+            case ('G' << 8) | 'P':
+                return GPS;
+            case ('G' << 8) | 'L':
+                return GLONASS;
+            case ('G' << 8) | 'A':
+                return GALILEO;
+            case ('G' << 8) | 'B':
+            case ('B' << 8) | 'D':
+                return BEIDOU;
+            case ('G' << 8) | 'Q':
+            case ('Q' << 8) | 'Z':
+                return QZSS;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Reads a GSV sentence.
+     *
+     * <pre>
+     * $GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45*75
+     *
+     *   2            Number of sentences for full data
+     *   1            Sentence 1 of 2
+     *   08           Number of satellites in view
+     *   01           Satellite PRN number
+     *   40           Elevation, degrees
+     *   083          Azimuth, degrees
+     *   46           SNR - higher is better
+     *                for up to 4 satellites per sentence
+     *   (1)          Signal id, since NMEA 4.10
+     * </pre>
+     */
+    public void parseGsv(NmeaFields fields) {
+        int constellation = getConstellation(fields.getTalker());
+        if (constellation < 0) {
+            return;
+        }
+        int parts = fields.getInt(1, 0);
+        int part = fields.getInt(2, 0);
+
+        if (part == 1) {
+            if (updateEpochs[constellation] == epoch) {
+                // Already have the satellites of this epoch, from another signal
+                nextParts[constellation] = 0;
+                return;
+            }
+            partCounts[constellation] = 0;
+            nextParts[constellation] = 1;
+        }
+        if (part == 0 || part != nextParts[constellation]) {
+            // A part was lost
+            nextParts[constellation] = 0;
+            return;
+        }
+
+        int base = constellation * MAX_SATELLITES;
+        int satellites = (fields.size() - 4) / 4;
+        for (int i = 0; i < satellites; i++) {
+            int field = 4 + i * 4;
+            if (fields.isEmpty(field) || partCounts[constellation] == MAX_SATELLITES) {
+                continue;
+            }
+            int slot = base + partCounts[constellation];
+            partPrns[slot] = fields.getInt(field, 0);
+            partElevations[slot] = fields.getInt(field + 1, -1);
+            partAzimuths[slot] = fields.getInt(field + 2, -1);
+            partSnrs[slot] = fields.getInt(field + 3, -1);
+            partCounts[constellation]++;
+        }
+
+        if (part < parts) {
+            nextParts[constellation]++;
+            return;
+        }
+
+        int count = partCounts[constellation];
+        System.arraycopy(partPrns, base, prns, base, count);
+        System.arraycopy(partElevations, base, elevations, base, count);
+        System.arraycopy(partAzimuths, base, azimuths, base, count);
+        System.arraycopy(partSnrs, base, snrs, base, count);
+        counts[constellation] = count;
+        updateEpochs[constellation] = epoch;
+        nextParts[constellation] = 0;
+    }
+
+    /**
+     * Reads the PRNs used in the fix from a GSA sentence (fields 3 to 14). The constellation is given by the
+     * system id of NMEA 4.10 (field 18), by the talker, or for a GN talker without system id by the PRN numbering.
+     */
+    public void parseGsa(NmeaFields fields) {
+        if (fields.equals(2, '1')) {
+            // No fix
+            return;
+        }
+        int constellation;
+        switch (fields.getInt(18, 0)) {
+            case 1:
+                constellation = GPS;
+                break;
+            case 2:
+                constellation = GLONASS;
+                break;
+            case 3:
+                constellation = GALILEO;
+                break;
+            case 4:
+                constellation = BEIDOU;
+                break;
+            case 5:
+                constellation = QZSS;
+                break;
+            default:
+                constellation = getConstellation(fields.getTalker());
+        }
+
+        for (int field = 3; field < 3 + GSA_PRNS; field++) {
+            if (fields.isEmpty(field)) {
+                continue;
+            }
+            int prn = fields.getInt(field, 0);
+            int prnConstellation = constellation;
+            if (prnConstellation < 0) {
+                // NMEA 2.3 numbering, GPS and SBAS up to 64, then GLONASS
+                prnConstellation = prn <= 64 ? GPS : prn <= 96 ? GLONASS : -1;
+            }
+            if (prnConstellation >= 0) {
+                addUsedPrn(prnConstellation, prn);
+            }
+        }
+    }
+
+    private void addUsedPrn(int constellation, int prn) {
+        if (usedEpochs[constellation] != epoch) {
+            // First GSA of the epoch for this constellation
+            usedEpochs[constellation] = epoch;
+            usedCounts[constellation] = 0;
+        }
+        if (usedCounts[constellation] < MAX_SATELLITES) {
+            usedPrns[constellation * MAX_SATELLITES + usedCounts[constellation]] = prn;
+            usedCounts[constellation]++;
+        }
+    }
+
+    /**
+     * Ends the current epoch, giving its satellites to the listener.
+     *
+     * @param timeOfDay UTC time of day of the epoch, or -1 if unknown
+     */
+    public void endEpoch(int timeOfDay) {
+        if (listener != null) {
+            fillSnapshot(timeOfDay);
+            listener.onSatellites(snapshot);
+        }
+        epoch++;
+    }
+
+    /**
+     * Forgets all the satellites, for instance when the GPS is disconnected.
+     */
+    public void clear() {
+        for (int constellation = 0; constellation < CONSTELLATIONS; constellation++) {
+            counts[constellation] = 0;
+            nextParts[constellation] = 0;
+            usedCounts[constellation] = 0;
+        }
+    }
+
+    private void fillSnapshot(int timeOfDay) {
+        int count = 0;
+        for (int constellation = 0; constellation < CONSTELLATIONS; constellation++) {
+            if (epoch - updateEpochs[constellation] > STALE_EPOCHS) {
+                counts[constellation] = 0;
+            }
+            // GSA of the epoch or, if there was none yet, of the previous one
+            boolean hasUsed = epoch - usedEpochs[constellation] <= 1;
+            int base = constellation * MAX_SATELLITES;
+
+            for (int i = 0; i < counts[constellation]; i++) {
+                int slot = base + i;
+                snapshot.constellations[count] = (byte) constellation;
+                snapshot.prns[count] = prns[slot];
+                snapshot.elevations[count] = elevations[slot];
+                snapshot.azimuths[count] = azimuths[slot];
+                snapshot.snrs[count] = snrs[slot];
+                snapshot.usedInFix[count] = hasUsed && isUsed(constellation, prns[slot]);
+                count++;
+            }
+        }
+        snapshot.count = count;
+        snapshot.timeOfDay = timeOfDay;
+    }
+
+    private boolean isUsed(int constellation, int prn) {
+        int base = constellation * MAX_SATELLITES;
+        for (int i = 0; i < usedCounts[constellation]; i++) {
+            if (usedPrns[base + i] == prn) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * The satellites in view at the end of an epoch, as parallel primitive arrays ordered by constellation.
+ * <p>
+ * Snapshots are meant to be filled again and again: {@link SatelliteModel} reuses the same instance for every
+ * epoch, so a listener keeping one must copy it with {@link #copyFrom(SatelliteSnapshot)}.
+ */
+public class SatelliteSnapshot {
+    /**
+     * UTC time of day of the epoch in milliseconds, or -1 if unknown.
+     */
+    public int timeOfDay = -1;
+    /**
+     * Number of satellites, the arrays are only valid up to this index.
+     */
+    public int count = 0;
+
+    /**
+     * One of the {@link SatelliteModel} constellations.
+     */
+    public final byte[] constellations;
+    public final int[] prns;
+    /**
+     * Elevation in degrees, or -1 if unknown.
+     */
+    public final int[] elevations;
+    /**
+     * Azimuth in degrees true, or -1 if unknown.
+     */
+    public final int[] azimuths;
+    /**
+     * Signal to noise ratio in dB-Hz, or -1 when the satellite is not tracked.
+     */
+    public final int[] snrs;
+    public final boolean[] usedInFix;
+
+    public SatelliteSnapshot() {
+        this(SatelliteModel.CONSTELLATIONS * SatelliteModel.MAX_SATELLITES);
+    }
+
+    public SatelliteSnapshot(int capacity) {
+        constellations = new byte[capacity];
+        prns = new int[capacity];
+        elevations = new int[capacity];
+        azimuths = new int[capacity];
+        snrs = new int[capacity];
+        usedInFix = new boolean[capacity];
+    }
+
+    public int getCapacity() {
+        return prns.length;
+    }
+
+    /**
+     * @return the number of satellites of the constellation
+     */
+    public int getCount(int constellation) {
+        int constellationCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (constellations[i] == constellation) {
+                constellationCount++;
+            }
+        }
+        return constellationCount;
+    }
+
+    /**
+     * @return the number of satellites used in the fix
+     */
+    public int getUsedCount() {
+        int used = 0;
+        for (int i = 0; i < count; i++) {
+            if (usedInFix[i]) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Copies another snapshot without allocating, as many satellites as this one can hold.
+     */
+    public void copyFrom(SatelliteSnapshot other) {
+        int copied = Math.min(other.count, getCapacity());
+        System.arraycopy(other.constellations, 0, constellations, 0, copied);
+        System.arraycopy(other.prns, 0, prns, 0, copied);
+        System.arraycopy(other.elevations, 0, elevations, 0, copied);
+        System.arraycopy(other.azimuths, 0, azimuths, 0, copied);
+        System.arraycopy(other.snrs, 0, snrs, 0, copied);
+        System.arraycopy(other.usedInFix, 0, usedInFix, 0, copied);
+        timeOfDay = other.timeOfDay;
+        count = copied;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder satellites = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                satellites.append(' ');
+            }
+            satellites.append(SatelliteModel.getConstellationName(constellations[i]))
+                    .append(prns[i])
+                    .append('/').append(snrs[i])
+                    .append(usedInFix[i] ? "*" : "");
+        }
+        return satellites.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The format of a track archive: the NMEA sentences received, with the time they were received,
+ * compressed in blocks and indexed by time, so a time range can be read back by decompressing only
+ * the blocks it overlaps.
+ * <p>
+ * An archive is a directory with two files per UTC day, big endian:
+ * <pre>
+ * track-yyyyMMdd.ugpa, the blocks
+ *    0  int   {@link #MAGIC}
+ *    4  int   {@link #VERSION}
+ *    8        the blocks, one after the other:
+ *       0  long  earliest time of its sentences, in milliseconds
+ *       8  long  latest time of its sentences
+ *      16  int   number of sentences
+ *      20  int   uncompressed length, at most {@link #BLOCK_SIZE}
+ *      24  int   compressed length
+ *      28  int   CRC32 of the uncompressed data
+ *      32        the uncompressed data, Deflate compressed in the zlib format
+ * track-yyyyMMdd.ugpi, the index
+ *    0  int   {@link #INDEX_MAGIC}
+ *    4  int   {@link #VERSION}
+ *    8        an entry per block, in the same order:
+ *       0  long  earliest time of the sentences of the block
+ *       8  long  latest time of the sentences of the block
+ *      16  long  offset of the block in the .ugpa file
+ *      24  int   compressed length
+ *      28  int   number of sentences
+ * </pre>
+ * Uncompressed, each sentence is its time as a zigzag varint delta from the time of the previous one
+ * (from 0 for the first one of the block), then its characters without the line terminator, then '\n'.
+ * The times are the ones the sentences were received at, they can go back if the system clock is set.
+ * <p>
+ * A block is always written, and synced, before its index entry, so the index never points past the data.
+ */
+public final class TrackArchive {
+    public static final int MAGIC = 0x55475041; // "UGPA"
+    public static final int INDEX_MAGIC = 0x55475049; // "UGPI"
+    public static final int VERSION = 1;
+
+    public static final int FILE_HEADER_SIZE = 8;
+    public static final int BLOCK_HEADER_SIZE = 32;
+    public static final int INDEX_ENTRY_SIZE = 32;
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    static final String DATA_EXTENSION = ".ugpa";
+    static final String INDEX_EXTENSION = ".ugpi";
+
+    private TrackArchive() {
+    }
+
+    /**
+     * @return the UTC day of the given time, in days since the epoch
+     */
+    public static long dayOf(long time) {
+        return Math.floorDiv(time, NmeaClock.DAY_MILLIS);
+    }
+
+    static File dataFile(File dir, long day) {
+        return new File(dir, baseName(day) + DATA_EXTENSION);
+    }
+
+    static File indexFile(File dir, long day) {
+        return new File(dir, baseName(day) + INDEX_EXTENSION);
+    }
+
+    private static String baseName(long day) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return "track-" + format.format(new Date(day * NmeaClock.DAY_MILLIS));
+    }
+}
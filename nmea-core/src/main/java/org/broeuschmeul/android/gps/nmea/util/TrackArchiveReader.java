@@ -0,0 +1,151 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the sentences of a time range back from a {@link TrackArchive}.
+ * <p>
+ * Only the index of the days of the range is read, a few kB a day, and only the blocks overlapping the range
+ * are decompressed. The buffers and the decompressor are reused from block to block. Not thread safe.
+ */
+public class TrackArchiveReader {
+    private final File dir;
+    private final Inflater inflater = new Inflater();
+    private final CRC32 crc = new CRC32();
+    private final byte[] raw = new byte[TrackArchive.BLOCK_SIZE];
+    private final byte[] header = new byte[TrackArchive.BLOCK_HEADER_SIZE];
+    private byte[] compressed = new byte[TrackArchive.BLOCK_SIZE];
+
+    /**
+     * Receives the sentences read.
+     */
+    public interface SentenceListener {
+        void onSentence(long time, String sentence);
+    }
+
+    public TrackArchiveReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Reads, block after block, the sentences received from the given time included to the given time excluded.
+     *
+     * @param from     start of the range, in milliseconds
+     * @param to       end of the range, in milliseconds
+     * @param listener receives the sentences
+     * @return the number of blocks decompressed
+     * @throws IOException if the archive can't be read or is corrupted
+     */
+    public int read(long from, long to, SentenceListener listener) throws IOException {
+        int blocks = 0;
+        if (to <= from) {
+            return blocks;
+        }
+
+        for (long day = TrackArchive.dayOf(from); day <= TrackArchive.dayOf(to - 1); day++) {
+            File indexFile = TrackArchive.indexFile(dir, day);
+            File dataFile = TrackArchive.dataFile(dir, day);
+            if (!indexFile.isFile() || !dataFile.isFile()) {
+                continue;
+            }
+
+            try (DataInputStream index = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                 RandomAccessFile data = new RandomAccessFile(dataFile, "r")) {
+                if (index.readInt() != TrackArchive.INDEX_MAGIC || index.readInt() != TrackArchive.VERSION) {
+                    throw new IOException("Not a track index: " + indexFile);
+                }
+                long entries = (indexFile.length() - TrackArchive.FILE_HEADER_SIZE) / TrackArchive.INDEX_ENTRY_SIZE;
+                for (long i = 0; i < entries; i++) {
+                    long earliestTime = index.readLong();
+                    long latestTime = index.readLong();
+                    long offset = index.readLong();
+                    int compressedLength = index.readInt();
+                    index.readInt();
+
+                    if (latestTime >= from && earliestTime < to) {
+                        readBlock(data, offset, compressedLength, from, to, listener);
+                        blocks++;
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+
+    public void close() {
+        inflater.end();
+    }
+
+    private void readBlock(RandomAccessFile data, long offset, int compressedLength, long from, long to,
+                           SentenceListener listener) throws IOException {
+        data.seek(offset);
+        data.readFully(header);
+        ByteBuffer blockHeader = ByteBuffer.wrap(header);
+        int sentenceCount = blockHeader.getInt(16);
+        int rawLength = blockHeader.getInt(20);
+        int checksum = blockHeader.getInt(28);
+        if (blockHeader.getInt(24) != compressedLength || rawLength < 0 || rawLength > TrackArchive.BLOCK_SIZE) {
+            throw new IOException("Corrupted block at " + offset);
+        }
+
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        data.readFully(compressed, 0, compressedLength);
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IOException("Truncated block at " + offset);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block at " + offset, e);
+        }
+        crc.reset();
+        crc.update(raw, 0, rawLength);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Bad checksum of block at " + offset);
+        }
+
+        int position = 0;
+        long time = 0;
+        for (int i = 0; i < sentenceCount && position < rawLength; i++) {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = raw[position++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0 && position < rawLength);
+            time += (zigzag >>> 1) ^ -(zigzag & 1);
+
+            int start = position;
+            while (position < rawLength && raw[position] != '\n') {
+                position++;
+            }
+            if (time >= from && time < to) {
+                listener.onSentence(time, new String(raw, start, position - start, StandardCharsets.US_ASCII));
+            }
+            position++;
+        }
+    }
+}
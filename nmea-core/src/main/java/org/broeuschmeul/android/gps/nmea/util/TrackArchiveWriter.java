@@ -0,0 +1,236 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Appends the sentences received to a {@link TrackArchive}.
+ * <p>
+ * Sentences are gathered in a block of {@link TrackArchive#BLOCK_SIZE} bytes, which is compressed and written
+ * with its index entry once full, when the UTC day changes and on {@link #flush()}. The buffers and the
+ * compressor are reused from block to block. When the files of the day already exist the blocks are appended
+ * to them, after cutting a block whose index entry was never written.
+ * <p>
+ * Not thread safe, and a block being gathered is not visible to a {@link TrackArchiveReader} yet.
+ */
+public class TrackArchiveWriter {
+    /**
+     * Longest zigzag varint, plus the '\n'.
+     */
+    private static final int SENTENCE_OVERHEAD = 11;
+
+    private final File dir;
+    private final Deflater deflater = new Deflater();
+    private final CRC32 crc = new CRC32();
+    private final byte[] raw = new byte[TrackArchive.BLOCK_SIZE];
+    private byte[] block = new byte[TrackArchive.BLOCK_HEADER_SIZE + TrackArchive.BLOCK_SIZE];
+    private final byte[] entry = new byte[TrackArchive.INDEX_ENTRY_SIZE];
+
+    private int rawLength = 0;
+    private int sentenceCount = 0;
+    private long previousTime;
+    private long earliestTime;
+    private long latestTime;
+
+    private long day = Long.MIN_VALUE;
+    private FileOutputStream data;
+    private FileOutputStream index;
+    private long dataLength;
+
+    /**
+     * @param dir directory of the archive, created if needed
+     */
+    public TrackArchiveWriter(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        this.dir = dir;
+    }
+
+    /**
+     * @param time     when the sentence was received, in milliseconds
+     * @param sentence the sentence, its line terminator is not kept
+     */
+    public void add(long time, CharSequence sentence) throws IOException {
+        int length = sentence.length();
+        while (length > 0 && (sentence.charAt(length - 1) == '\n' || sentence.charAt(length - 1) == '\r')) {
+            length--;
+        }
+        if (length == 0 || length + SENTENCE_OVERHEAD > TrackArchive.BLOCK_SIZE) {
+            return;
+        }
+
+        long sentenceDay = TrackArchive.dayOf(time);
+        if (sentenceDay != day) {
+            flush();
+            openDay(sentenceDay);
+        } else if (rawLength + length + SENTENCE_OVERHEAD > TrackArchive.BLOCK_SIZE) {
+            flush();
+        }
+
+        if (sentenceCount == 0) {
+            previousTime = 0;
+            earliestTime = time;
+            latestTime = time;
+        } else {
+            earliestTime = Math.min(earliestTime, time);
+            latestTime = Math.max(latestTime, time);
+        }
+
+        long delta = time - previousTime;
+        long zigzag = (delta << 1) ^ (delta >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            raw[rawLength++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        raw[rawLength++] = (byte) zigzag;
+
+        for (int i = 0; i < length; i++) {
+            raw[rawLength++] = (byte) sentence.charAt(i);
+        }
+        raw[rawLength++] = '\n';
+
+        previousTime = time;
+        sentenceCount++;
+    }
+
+    /**
+     * Compresses and writes the block being gathered, even if it is not full.
+     */
+    public void flush() throws IOException {
+        if (sentenceCount == 0 || data == null) {
+            return;
+        }
+
+        crc.reset();
+        crc.update(raw, 0, rawLength);
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (TrackArchive.BLOCK_HEADER_SIZE + compressedLength == block.length) {
+                // Only if the data doesn't compress at all
+                block = Arrays.copyOf(block, block.length * 2);
+            }
+            compressedLength += deflater.deflate(block, TrackArchive.BLOCK_HEADER_SIZE + compressedLength,
+                    block.length - TrackArchive.BLOCK_HEADER_SIZE - compressedLength);
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(block);
+        header.putLong(0, earliestTime);
+        header.putLong(8, latestTime);
+        header.putInt(16, sentenceCount);
+        header.putInt(20, rawLength);
+        header.putInt(24, compressedLength);
+        header.putInt(28, (int) crc.getValue());
+        int blockLength = TrackArchive.BLOCK_HEADER_SIZE + compressedLength;
+        data.write(block, 0, blockLength);
+        data.getFD().sync();
+
+        ByteBuffer indexEntry = ByteBuffer.wrap(entry);
+        indexEntry.putLong(0, earliestTime);
+        indexEntry.putLong(8, latestTime);
+        indexEntry.putLong(16, dataLength);
+        indexEntry.putInt(24, compressedLength);
+        indexEntry.putInt(28, sentenceCount);
+        index.write(entry);
+        index.getFD().sync();
+
+        dataLength += blockLength;
+        rawLength = 0;
+        sentenceCount = 0;
+    }
+
+    /**
+     * Writes the block being gathered and closes the files. The writer can't be used anymore.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            closeFiles();
+            deflater.end();
+        }
+    }
+
+    private void openDay(long newDay) throws IOException {
+        closeFiles();
+        day = Long.MIN_VALUE;
+
+        File dataFile = TrackArchive.dataFile(dir, newDay);
+        File indexFile = TrackArchive.indexFile(dir, newDay);
+        long validData = TrackArchive.FILE_HEADER_SIZE;
+        long validIndex = TrackArchive.FILE_HEADER_SIZE;
+        boolean existing = dataFile.length() >= TrackArchive.FILE_HEADER_SIZE
+                && indexFile.length() >= TrackArchive.FILE_HEADER_SIZE;
+
+        if (existing) {
+            // Keeps the blocks the index knows of
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() != TrackArchive.INDEX_MAGIC || in.readInt() != TrackArchive.VERSION) {
+                    throw new IOException("Not a track index: " + indexFile);
+                }
+                long entries = (indexFile.length() - TrackArchive.FILE_HEADER_SIZE) / TrackArchive.INDEX_ENTRY_SIZE;
+                for (long i = 0; i < entries; i++) {
+                    in.readLong();
+                    in.readLong();
+                    long offset = in.readLong();
+                    int compressedLength = in.readInt();
+                    in.readInt();
+                    long end = offset + TrackArchive.BLOCK_HEADER_SIZE + compressedLength;
+                    if (offset != validData || end > dataFile.length()) {
+                        break;
+                    }
+                    validData = end;
+                    validIndex += TrackArchive.INDEX_ENTRY_SIZE;
+                }
+            }
+        }
+
+        truncate(dataFile, existing ? validData : 0);
+        truncate(indexFile, existing ? validIndex : 0);
+        data = new FileOutputStream(dataFile, true);
+        index = new FileOutputStream(indexFile, true);
+        if (!existing) {
+            ByteBuffer header = ByteBuffer.allocate(TrackArchive.FILE_HEADER_SIZE);
+            data.write(header.putInt(0, TrackArchive.MAGIC).putInt(4, TrackArchive.VERSION).array());
+            index.write(header.putInt(0, TrackArchive.INDEX_MAGIC).array());
+        }
+        dataLength = validData;
+        day = newDay;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        FileOutputStream oldData = data;
+        FileOutputStream oldIndex = index;
+        data = null;
+        index = null;
+        try {
+            if (oldData != null) {
+                oldData.close();
+            }
+        } finally {
+            if (oldIndex != null) {
+                oldIndex.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * The UBX binary protocol of the u-blox receivers, which can be sent in the same stream as the NMEA sentences.
+ * <p>
+ * A frame is laid out as follows, little endian:
+ * <pre>
+ *    0  u1   {@link #SYNC_1}
+ *    1  u1   {@link #SYNC_2}
+ *    2  u1   message class
+ *    3  u1   message id
+ *    4  u2   payload length
+ *    6       the payload
+ *    6+n u1  CK_A
+ *    7+n u1  CK_B
+ * </pre>
+ * The checksum is the 8-bit Fletcher algorithm over the class, the id, the length and the payload.
+ */
+public final class Ubx {
+    public static final int SYNC_1 = 0xB5;
+    public static final int SYNC_2 = 0x62;
+
+    public static final int HEADER_SIZE = 6;
+    public static final int CHECKSUM_SIZE = 2;
+    /**
+     * Bigger frames are seen as garbage, to not wait on a bogus length.
+     */
+    public static final int MAX_PAYLOAD = 4096;
+
+    public static final int CLASS_NAV = 0x01;
+    /**
+     * Navigation position velocity time solution: a whole fix in one message, since protocol 14 (u-blox 7).
+     */
+    public static final int NAV_PVT = 0x07;
+    /**
+     * Payload length of NAV-PVT in protocol 14, later ones add fields at the end (92 bytes since u-blox 8).
+     */
+    public static final int NAV_PVT_MIN_LENGTH = 84;
+
+    private Ubx() {
+    }
+
+    /**
+     * @param buffer buffer holding the frame
+     * @param offset offset of the first sync byte
+     * @param length length of the frame, including the checksum
+     * @return true if the frame is complete and its checksum is right
+     */
+    public static boolean isValid(byte[] buffer, int offset, int length) {
+        if (length < HEADER_SIZE + CHECKSUM_SIZE
+                || (buffer[offset] & 0xFF) != SYNC_1 || (buffer[offset + 1] & 0xFF) != SYNC_2
+                || getPayloadLength(buffer, offset) != length - HEADER_SIZE - CHECKSUM_SIZE) {
+            return false;
+        }
+        int ckA = 0;
+        int ckB = 0;
+        int end = offset + length - CHECKSUM_SIZE;
+        for (int i = offset + 2; i < end; i++) {
+            ckA += buffer[i] & 0xFF;
+            ckB += ckA;
+        }
+        return (buffer[end] & 0xFF) == (ckA & 0xFF) && (buffer[end + 1] & 0xFF) == (ckB & 0xFF);
+    }
+
+    public static int getMessageClass(byte[] buffer, int offset) {
+        return buffer[offset + 2] & 0xFF;
+    }
+
+    public static int getMessageId(byte[] buffer, int offset) {
+        return buffer[offset + 3] & 0xFF;
+    }
+
+    public static int getPayloadLength(byte[] buffer, int offset) {
+        return getU2(buffer, offset + 4);
+    }
+
+    public static int getU1(byte[] buffer, int position) {
+        return buffer[position] & 0xFF;
+    }
+
+    public static int getU2(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) | (buffer[position + 1] & 0xFF) << 8;
+    }
+
+    public static int getI4(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) | (buffer[position + 1] & 0xFF) << 8
+                | (buffer[position + 2] & 0xFF) << 16 | buffer[position + 3] << 24;
+    }
+
+    public static long getU4(byte[] buffer, int position) {
+        return getI4(buffer, position) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,125 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport delivering chunks from memory, which behaves like the USB ones: each chunk comes after a wait
+ * that can't be interrupted, like {@code UsbDeviceConnection.requestWait(long)}, and the connection is used
+ * once more when the thread stops, to cancel the pending requests.
+ */
+final class InMemoryTransport extends Thread implements GpsTransport {
+    private static final int BUFFER_COUNT = 4;
+
+    /**
+     * Stands for the USB connection, which the caller closes.
+     */
+    static final class Connection {
+        private volatile boolean closed = false;
+        private volatile int usesAfterClose = 0;
+
+        void use() {
+            if (closed) {
+                usesAfterClose++;
+            }
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        int getUsesAfterClose() {
+            return usesAfterClose;
+        }
+    }
+
+    private final Connection connection;
+    private final byte[][] chunks;
+    private final long wait;
+    private final BlockingQueue<TransferBuffer> freeBuffers;
+    private final BlockingQueue<TransferBuffer> filledBuffers;
+    private volatile boolean closed = false;
+
+    /**
+     * @param connection the connection the transport reads
+     * @param wait       how long each chunk is waited for, in ms
+     * @param chunks     the data, delivered in a loop
+     */
+    InMemoryTransport(Connection connection, long wait, byte[]... chunks) {
+        super("InMemoryTransport");
+        this.connection = connection;
+        this.chunks = chunks;
+        this.wait = wait;
+
+        int size = 0;
+        for (byte[] chunk : chunks) {
+            size = Math.max(size, chunk.length);
+        }
+        freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        filledBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            freeBuffers.add(new TransferBuffer(size));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Like the USB transports, only sees it is closed once the wait is over
+            for (int i = 0; ; i = (i + 1) % chunks.length) {
+                waitUninterruptibly(wait);
+                connection.use();
+                if (closed) {
+                    break;
+                }
+
+                TransferBuffer buffer = freeBuffers.take();
+                System.arraycopy(chunks[i], 0, buffer.data, 0, chunks[i].length);
+                buffer.length = chunks[i].length;
+                buffer.receiveTime = System.nanoTime();
+                filledBuffers.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } finally {
+            // Cancels the requests
+            connection.use();
+        }
+    }
+
+    private static void waitUninterruptibly(long millis) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long left;
+        while ((left = end - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(left);
+            } catch (InterruptedException e) {
+                // like a native wait
+            }
+        }
+    }
+
+    @Override
+    public TransferBuffer take(long timeout) throws InterruptedException {
+        return filledBuffers.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recycle(TransferBuffer buffer) {
+        buffer.length = 0;
+        freeBuffers.offer(buffer);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        interrupt();
+    }
+
+    @Override
+    public boolean awaitClosed(long timeout) throws InterruptedException {
+        join(timeout);
+        return !isAlive();
+    }
+}
@@ -0,0 +1,126 @@
+package org.broeuschmeul.android.gps.nmea.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that once {@link GpsTransport#awaitClosed(long)} returned true, the transport doesn't use what it
+ * reads anymore, so the caller can close it.
+ */
+public class TransportCloseTest {
+    private static final byte[] GGA = "$GPGGA,120000.00,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*67\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final long CLOSE_TIMEOUT = 2000;
+
+    @Test
+    public void awaitClosedWaitsForTheRequestsToBeCancelled() throws InterruptedException {
+        InMemoryTransport.Connection connection = new InMemoryTransport.Connection();
+        InMemoryTransport transport = new InMemoryTransport(connection, 200, GGA);
+        transport.start();
+
+        TransferBuffer buffer = transport.take(CLOSE_TIMEOUT);
+        assertNotNull(buffer);
+        assertEquals(GGA.length, buffer.length);
+        transport.recycle(buffer);
+
+        // The wait for the next chunk can't be interrupted
+        transport.close();
+        assertTrue(transport.awaitClosed(CLOSE_TIMEOUT));
+        connection.close();
+
+        assertEquals(0, connection.getUsesAfterClose());
+    }
+
+    @Test
+    public void awaitClosedTimesOutWhileTheTransportRuns() throws InterruptedException {
+        InMemoryTransport.Connection connection = new InMemoryTransport.Connection();
+        InMemoryTransport transport = new InMemoryTransport(connection, 500, GGA);
+        transport.start();
+        // Then waiting for the next chunk
+        assertNotNull(transport.take(CLOSE_TIMEOUT));
+
+        transport.close();
+        assertFalse(transport.awaitClosed(50));
+        assertTrue(transport.awaitClosed(CLOSE_TIMEOUT));
+    }
+
+    @Test
+    public void awaitClosedIsTrueIfNeverStarted() throws InterruptedException {
+        GpsTransport transport = new InMemoryTransport(new InMemoryTransport.Connection(), 0, GGA);
+        transport.close();
+        assertTrue(transport.awaitClosed(1));
+    }
+
+    @Test
+    public void replayStopsReadingTheCapture() throws IOException, InterruptedException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RawCapture.writeHeader(out, 0, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            RawCapture.writeRecord(out, GGA, 0, GGA.length, i * 1000000000L);
+        }
+        out.flush();
+
+        ClosingInputStream capture = new ClosingInputStream(bytes.toByteArray());
+        ReplayTransport transport = new ReplayTransport(capture, ReplayTransport.REAL_TIME,
+                ReplayTransport.SYSTEM_CLOCK);
+        transport.start();
+
+        TransferBuffer buffer = transport.take(CLOSE_TIMEOUT);
+        assertNotNull(buffer);
+        transport.recycle(buffer);
+
+        // Sleeping until the next record
+        transport.close();
+        assertTrue(transport.awaitClosed(CLOSE_TIMEOUT));
+        capture.close();
+
+        assertFalse(transport.isAlive());
+        assertEquals(0, capture.readsAfterClose);
+        assertNull(transport.getError());
+    }
+
+    /**
+     * Counts the reads made after it was closed, instead of failing them.
+     */
+    private static final class ClosingInputStream extends ByteArrayInputStream {
+        private volatile boolean closed = false;
+        private volatile int readsAfterClose = 0;
+
+        ClosingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read() {
+            if (closed) {
+                readsAfterClose++;
+            }
+            return super.read();
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            if (closed) {
+                readsAfterClose++;
+            }
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the epochs with the timing of a serial link, on a simulated clock, and checks what the epochs are
+ * published with.
+ */
+public class EpochTimingTest {
+    private static final int START = 12 * 3600 * 1000;
+
+    private long now = 0;
+    private final List<Integer> times = new ArrayList<>();
+    private final List<Boolean> withRmc = new ArrayList<>();
+    private final List<Float> speeds = new ArrayList<>();
+
+    private final NmeaDecoder decoder = new NmeaDecoder(new NmeaDecoder.Listener() {
+        @Override
+        public void onFixStatus(boolean available, int timeOfDay) {
+        }
+
+        @Override
+        public void onFix(GpsFix fix) {
+            times.add(fix.timeOfDay);
+            withRmc.add(fix.has(GpsFix.RMC));
+            speeds.add(fix.speed);
+        }
+    }) {
+        @Override
+        protected long uptimeMillis() {
+            return now;
+        }
+    };
+
+    /**
+     * Sends an epoch every second, each sentence received once its last byte went through at the baud rate.
+     * The pending epoch is checked every 10 ms, as the reading loop would.
+     */
+    private void feed(int epochs, int baudRate) {
+        for (int i = 0; i < epochs; i++) {
+            long epochStart = i * 1000L;
+            long bytes = 0;
+            for (byte[] sentence : TestSentences.sirfEpoch(START + i * 1000)) {
+                bytes += sentence.length;
+                advance(epochStart + bytes * 10000 / baudRate);
+                decoder.decode(sentence, 0, sentence.length);
+            }
+        }
+        advance(now + 1000);
+    }
+
+    private void advance(long to) {
+        while (now < to) {
+            now = Math.min(to, now + 10);
+            decoder.checkPendingEpoch();
+        }
+    }
+
+    @Test
+    public void gsvKeepsTheEpochOpenUntilRmc() {
+        // GSV x3 take about 220 ms at 9600 baud, more than the merge window
+        feed(8, 9600);
+
+        assertEquals(8, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(START + i * 1000, (int) times.get(i));
+            assertTrue("epoch " + i + " without RMC", withRmc.get(i));
+            assertFalse(Float.isNaN(speeds.get(i)));
+        }
+    }
+
+    @Test
+    public void deadlineStretchesToSlowBursts() {
+        // The burst takes about 850 ms at 4800 baud, more than the deadline
+        feed(8, 4800);
+
+        assertEquals(8, times.size());
+        assertFalse(withRmc.get(0));
+        for (int i = 2; i < times.size(); i++) {
+            assertEquals(START + i * 1000, (int) times.get(i));
+            assertTrue("epoch " + i + " without RMC", withRmc.get(i));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recorded receiver outputs through the framer and the decoder, and checks that each epoch gives
+ * exactly one fix, with its GGA and RMC merged.
+ */
+public class NmeaDecoderCorpusTest {
+    private static final long JAN_31_2024 = 1706659200000L;
+
+    private final List<GpsFix> fixes = new ArrayList<>();
+    private int invalidSentences = 0;
+
+    private void replay(String corpus, int transferSize) throws IOException {
+        final NmeaDecoder decoder = new NmeaDecoder(new NmeaDecoder.Listener() {
+            @Override
+            public void onFixStatus(boolean available, int timeOfDay) {
+            }
+
+            @Override
+            public void onFix(GpsFix fix) {
+                // Only valid during the call
+                GpsFix copy = new GpsFix();
+                copy.timeOfDay = fix.timeOfDay;
+                copy.timestamp = fix.timestamp;
+                copy.sentences = fix.sentences;
+                copy.latitude = fix.latitude;
+                copy.longitude = fix.longitude;
+                copy.altitude = fix.altitude;
+                copy.speed = fix.speed;
+                copy.bearing = fix.bearing;
+                copy.hdop = fix.hdop;
+                copy.satellites = fix.satellites;
+                fixes.add(copy);
+            }
+        }) {
+            @Override
+            protected long uptimeMillis() {
+                // Replayed at once, epochs are only published by their last sentence or the next epoch
+                return 0;
+            }
+        };
+        NmeaFramer framer = new NmeaFramer(new NmeaFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                if (!decoder.decode(buffer, offset, length)) {
+                    invalidSentences++;
+                }
+            }
+        });
+
+        byte[] stream = read(corpus);
+        for (int offset = 0; offset < stream.length; offset += transferSize) {
+            framer.feed(stream, offset, Math.min(transferSize, stream.length - offset));
+        }
+    }
+
+    private static byte[] read(String corpus) throws IOException {
+        try (InputStream in = NmeaDecoderCorpusTest.class.getResourceAsStream(corpus)) {
+            assertNotNull(corpus, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private void assertOneMergedFixPerEpoch(int epochs, int firstTimeOfDay) {
+        assertEquals(0, invalidSentences);
+        assertEquals(epochs, fixes.size());
+        for (int i = 0; i < epochs; i++) {
+            GpsFix fix = fixes.get(i);
+            assertEquals((firstTimeOfDay + i * 1000) % (int) NmeaClock.DAY_MILLIS, fix.timeOfDay);
+            assertTrue("epoch " + i + " without GGA", fix.has(GpsFix.GGA));
+            assertTrue("epoch " + i + " without RMC", fix.has(GpsFix.RMC));
+            assertTrue(fix.hasPosition());
+            assertFalse(Double.isNaN(fix.altitude));
+            assertFalse(Float.isNaN(fix.speed));
+            assertFalse(Float.isNaN(fix.bearing));
+            assertFalse(Float.isNaN(fix.hdop));
+            assertTrue(fix.satellites > 0);
+        }
+    }
+
+    @Test
+    public void ubloxRmcFirst() throws IOException {
+        // RMC, VTG, GGA, GSA x2, GSV x5, GLL
+        replay("ublox-m8-1Hz.nmea", 64);
+
+        assertOneMergedFixPerEpoch(10, 12 * 3600 * 1000);
+        // Once the sentence types are learnt, the epoch waits for its GSA
+        assertFalse(fixes.get(0).has(GpsFix.GSA));
+        assertTrue(fixes.get(9).has(GpsFix.VTG | GpsFix.GSA));
+        assertEquals(0.542f * 1852 / 3600, fixes.get(3).speed, 1e-4);
+        assertEquals(545.3, fixes.get(3).altitude, 1e-9);
+        assertEquals(48 + 7.0563 / 60, fixes.get(3).latitude, 1e-9);
+        assertEquals(12, fixes.get(3).satellites);
+    }
+
+    @Test
+    public void sirfRmcLastAcrossMidnight() throws IOException {
+        // GGA, GSA, GSV x3, RMC, from 23:59:55
+        replay("sirf-1Hz.nmea", 256);
+
+        assertOneMergedFixPerEpoch(10, (23 * 3600 + 59 * 60 + 55) * 1000);
+        // The first epoch is dated from the system clock, the next ones from the RMC date
+        for (int i = 1; i < fixes.size(); i++) {
+            assertEquals(JAN_31_2024 + (23 * 3600 + 59 * 60 + 55 + i) * 1000L, fixes.get(i).timestamp);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.broeuschmeul.android.gps.nmea.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Builds the sentences of the tests, with their checksum and line terminator.
+ */
+final class TestSentences {
+    private TestSentences() {
+    }
+
+    /**
+     * @param content the sentence without the '$' and the checksum
+     */
+    static byte[] sentence(String content) {
+        int checksum = 0;
+        for (int i = 0; i < content.length(); i++) {
+            checksum ^= content.charAt(i);
+        }
+        return String.format(Locale.US, "$%s*%02X\r\n", content, checksum).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the time of day as sent in the sentences, hhmmss.ss
+     */
+    static String time(int timeOfDay) {
+        int seconds = timeOfDay / 1000;
+        return String.format(Locale.US, "%02d%02d%02d.%02d",
+                seconds / 3600, seconds / 60 % 60, seconds % 60, timeOfDay % 1000 / 10);
+    }
+
+    /**
+     * The default output of a SiRF receiver, one epoch: GGA, GSA, GSV x3, RMC.
+     */
+    static byte[][] sirfEpoch(int timeOfDay) {
+        String time = time(timeOfDay);
+        return new byte[][]{
+                sentence("GPGGA," + time + ",4807.0380,N,01131.0000,E,1,08,0.9,545.4,M,46.9,M,,"),
+                sentence("GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1"),
+                sentence("GPGSV,3,1,11,03,03,111,00,04,15,270,00,06,01,010,00,13,06,292,00"),
+                sentence("GPGSV,3,2,11,14,25,170,00,16,57,208,39,18,67,296,40,19,40,246,00"),
+                sentence("GPGSV,3,3,11,22,42,067,42,24,14,311,43,27,05,244,00"),
+                sentence("GPRMC," + time + ",A,4807.0380,N,01131.0000,E,022.4,084.4,230394,003.1,W"),
+        };
+    }
+}